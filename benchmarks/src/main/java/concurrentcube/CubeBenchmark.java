@@ -0,0 +1,124 @@
+package concurrentcube;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* Przepustowość i opóźnienia rotate() i show() razem z protokołem wejścia, dla różnych
+   rozmiarów kostki. Liczbę wątków ustawia się opcją -t, np. -t 1, -t 4, -t max. */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Benchmark)
+public class CubeBenchmark {
+
+    @Param({"3", "16", "128", "1024"})
+    public int size;
+
+    @Param({"false", "true"})
+    public boolean optimisticShowing;
+
+    @Param({"false", "true"})
+    public boolean lockFreeAdmission;
+
+    private Cube cube;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().optimisticShowing(optimisticShowing)
+                                 .lockFreeAdmission(lockFreeAdmission)
+        );
+    }
+
+    /* Losowy, ale powtarzalny ciąg obrotów osobny dla każdego wątku - losowanie nie
+       wlicza się do mierzonego czasu. */
+    @State(Scope.Thread)
+    public static class Moves {
+        private static final int MOVES = 1024;
+
+        private final int[] sides = new int[MOVES];
+        private final int[] layers = new int[MOVES];
+        private int next = 0;
+
+        @Setup(Level.Trial)
+        public void setUp(CubeBenchmark benchmark) {
+            Random random = new Random(Thread.currentThread().getId());
+            for (int i = 0; i < MOVES; i++) {
+                sides[i] = random.nextInt(6);
+                layers[i] = random.nextInt(benchmark.size);
+            }
+        }
+
+        private int advance() {
+            int move = next;
+            next = (next + 1) % MOVES;
+            return move;
+        }
+    }
+
+    @Benchmark
+    public void rotate(Moves moves) throws InterruptedException {
+        int move = moves.advance();
+        cube.rotate(moves.sides[move], moves.layers[move]);
+    }
+
+    @Benchmark
+    public String show() throws InterruptedException {
+        return cube.show();
+    }
+
+    /* Bufor dla showInto() osobny dla każdego wątku, alokowany raz. */
+    @State(Scope.Thread)
+    public static class Buffer {
+        private byte[] digits;
+
+        @Setup(Level.Trial)
+        public void setUp(CubeBenchmark benchmark) {
+            digits = new byte[6 * benchmark.size * benchmark.size];
+        }
+    }
+
+    @Benchmark
+    public byte[] showInto(Buffer buffer) throws InterruptedException {
+        cube.showInto(buffer.digits);
+        return buffer.digits;
+    }
+
+    /* Obciążenie mieszane z przewagą obrotów: 3 wątki obracające na 1 pokazujący. */
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(3)
+    public void writeHeavyRotate(Moves moves) throws InterruptedException {
+        rotate(moves);
+    }
+
+    @Benchmark
+    @Group("writeHeavy")
+    @GroupThreads(1)
+    public String writeHeavyShow() throws InterruptedException {
+        return cube.show();
+    }
+
+    /* Obciążenie mieszane z przewagą odczytów: 1 wątek obracający na 3 pokazujące. */
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(1)
+    public void readHeavyRotate(Moves moves) throws InterruptedException {
+        rotate(moves);
+    }
+
+    @Benchmark
+    @Group("readHeavy")
+    @GroupThreads(3)
+    public String readHeavyShow() throws InterruptedException {
+        return cube.show();
+    }
+}
@@ -0,0 +1,84 @@
+package concurrentcube;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* Sam obrót kwadratów (performARotation) bez protokołu, warstw i funkcji wywoływanych przed
+   i po obrocie. Każdy wątek ma własną kostkę, więc wynik nie zależy od liczby wątków.
+   Pomiar jest robiony z pętlami wektorowymi (StickerKernels) - pętle skalarne można zmierzyć,
+   dodając -jvmArgsAppend -Dconcurrentcube.scalarKernels=true. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class RotationKernelBenchmark {
+    private static final int MOVES = 1024;
+
+    @Param({"3", "16", "128", "1024"})
+    public int size;
+
+    /* Próg CubeOptions.parallelRotations - 0 to obroty w jednym wątku. */
+    @Param({"0", "1"})
+    public int parallelRotations;
+
+    /* CubeOptions.precomputedRotations - pasy pierścieni wyliczone przy tworzeniu kostki. */
+    @Param({"false", "true"})
+    public boolean precomputedRotations;
+
+    private Cube cube;
+    private final int[] sides = new int[MOVES];
+    private final int[] layers = new int[MOVES];
+    private int next = 0;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions()
+                        .parallelRotations(parallelRotations)
+                        .precomputedRotations(precomputedRotations)
+        );
+        Random random = new Random(size);
+        for (int i = 0; i < MOVES; i++) {
+            sides[i] = random.nextInt(6);
+            layers[i] = random.nextInt(size);
+        }
+    }
+
+    /* Losowe obroty - mieszanka warstw zewnętrznych (z obrotem ściany) i wewnętrznych. */
+    @Benchmark
+    public void randomLayer() {
+        int move = next;
+        next = (next + 1) % MOVES;
+        cube.performARotation(sides[move], layers[move]);
+    }
+
+    /* Obrót warstwy zewnętrznej - razem z obrotem całej ściany. */
+    @Benchmark
+    public void outerLayer() {
+        int move = next;
+        next = (next + 1) % MOVES;
+        cube.performARotation(sides[move], 0);
+    }
+
+    /* Obrót warstwy wewnętrznej - tylko przesunięcie pierścienia 4 * size kwadratów. */
+    @Benchmark
+    public void innerLayer() {
+        int move = next;
+        next = (next + 1) % MOVES;
+        cube.performARotation(sides[move], size / 2);
+    }
+
+    /* Obrót wewnętrznej warstwy UP - wiersze ścian bocznych to ciągłe fragmenty tablicy. */
+    @Benchmark
+    public void rowLayer() {
+        cube.performARotation(0, size / 2);
+    }
+}
@@ -0,0 +1,55 @@
+package concurrentcube;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/* Wielokrotne wykonywanie tego samego ciągu obrotów: po kolei przez rotateBatch() i jako
+   ciąg skompilowany przez Cube.compile(). Każdy wątek ma własną kostkę. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules", "jdk.incubator.vector"})
+@State(Scope.Thread)
+public class SequenceBenchmark {
+    @Param({"3", "5"})
+    public int size;
+
+    @Param({"20", "100"})
+    public int moves;
+
+    private Cube cube;
+    private int[] sides;
+    private int[] layers;
+    private CompiledSequence sequence;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        Random random = new Random(size);
+        sides = new int[moves];
+        layers = new int[moves];
+        for (int i = 0; i < moves; i++) {
+            sides[i] = random.nextInt(6);
+            layers[i] = random.nextInt(size);
+        }
+        sequence = cube.compile(sides, layers);
+    }
+
+    @Benchmark
+    public void batch() throws InterruptedException {
+        cube.rotateBatch(sides, layers);
+    }
+
+    @Benchmark
+    public void compiled() throws InterruptedException {
+        cube.rotate(sequence);
+    }
+}
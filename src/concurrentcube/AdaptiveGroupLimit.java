@@ -0,0 +1,62 @@
+package concurrentcube;
+
+/* Limit procesów wpuszczanych z pracującej grupy, gdy czekają inne grupy, dostosowywany
+   w trakcie działania tak, aby czas oczekiwania innych grup nie przekraczał zadanego progu.
+
+   Po każdej iteracji (od rozpoczęcia pracy przez grupę do zakończenia jej ostatniego procesu)
+   uaktualniamy średni koszt jednego procesu w iteracji. Gdy budzony jest reprezentant
+   czekającej grupy, porównujemy jego czas oczekiwania z progiem:
+   - jeśli próg został przekroczony, limit jest połowiony,
+   - w przeciwnym razie limit zbliża się do liczby procesów, które zmieszczą się w progu
+     podzielonym między grupę pracującą i wszystkie wciąż czekające grupy, po odjęciu czasu
+     procesów, które już czekają w kolejkach - każda grupa i tak wpuszcza je wszystkie.
+   Wszystkie metody wywoływane są z posiadanym mutexem protokołu. */
+final class AdaptiveGroupLimit {
+    /* Waga nowej próbki w średniej kroczącej kosztu procesu. */
+    private static final double SMOOTHING = 0.2;
+
+    private final long maxWaitingNanos;
+    private final int minimum;
+    private final int maximum;
+    private int limit;
+    private double nanosPerProcess = 0;
+
+    AdaptiveGroupLimit(long maxWaitingNanos, int initial, int minimum, int maximum) {
+        this.maxWaitingNanos = maxWaitingNanos;
+        this.minimum = minimum;
+        this.maximum = maximum;
+        this.limit = Math.max(minimum, Math.min(maximum, initial));
+    }
+
+    int limit() {
+        return limit;
+    }
+
+    /* Iteracja trwała iterationNanos i wpuszczono w niej processes procesów. */
+    void onIterationFinished(long iterationNanos, int processes) {
+        if (processes == 0) {
+            return;
+        }
+        double sample = (double) iterationNanos / processes;
+        nanosPerProcess = nanosPerProcess == 0
+                          ? sample
+                          : (1 - SMOOTHING) * nanosPerProcess + SMOOTHING * sample;
+    }
+
+    /* Reprezentant czekał waitedNanos, a po jego obudzeniu czeka jeszcze waitingGroups grup.
+       queuedProcesses to procesy wpuszczane razem z reprezentantem i procesy czekające
+       w kolejkach pozostałych grup. */
+    void onRepresentativeAdmitted(long waitedNanos, int waitingGroups, int queuedProcesses) {
+        if (waitedNanos > maxWaitingNanos) {
+            limit = Math.max(minimum, limit / 2);
+        } else if (nanosPerProcess > 0) {
+            /* Ostatnia z czekających grup poczeka na wszystkie procesy z kolejek i na procesy
+               wpuszczone ponad nie w iteracjach obecnej i wcześniejszych grup. */
+            double free = maxWaitingNanos - queuedProcesses * nanosPerProcess;
+            double budget = Math.max(0, free) / (waitingGroups + 1);
+            long fitting = (long) (budget / nanosPerProcess);
+            long target = Math.max(minimum, Math.min(maximum, fitting));
+            limit = (int) ((limit + target + 1) / 2);
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Wariant protokołu, w którym id pracującej grupy, liczba pracujących procesów i flaga
+   czekających procesów są trzymane w jednym słowie zmienianym przez CAS. Dopóki nikt nie
+   czeka, wejście i wyjście to jeden udany CAS bez mutexa.
+
+   Proces, który nie może wejść bez czekania, zajmuje mutex i ustawia flagę - od tej chwili
+   aż do opróżnienia kolejek wszystkie wejścia przechodzą przez mutex i zwykły protokół, więc
+   obowiązują te same reguły co w GroupProtocol: polityka wyboru grup i limit wpuszczanych
+   procesów (liczonych od pojawienia się flagi). Przy ustawionej fladze bez mutexa może wyjść tylko
+   nieostatni pracujący proces - ostatni musi przekazać sekcję czekającej grupie. */
+final class AtomicGroupProtocol extends GroupProtocol {
+    /* Układ słowa stanu: bity 0-31 - liczba pracujących procesów, bity 32-35 - id pracującej
+       grupy + 1, bity 36-39 - id ostatnio pracującej grupy + 1, bit 40 - flaga czekających. */
+    private static final long RUNNING_MASK = 0xFFFFFFFFL;
+    private static final int WORKING_SHIFT = 32;
+    private static final int LAST_SHIFT = 36;
+    private static final long GROUP_MASK = 0xFL;
+    private static final long WAITING = 1L << 40;
+
+    private final AtomicLong state = new AtomicLong(0);
+
+    AtomicGroupProtocol(int groups, int groupLimit, AdaptiveGroupLimit adaptiveGroupLimit,
+                        SchedulingPolicy policy, int readerGroup) {
+        super(groups, groupLimit, adaptiveGroupLimit, policy, readerGroup);
+    }
+
+    private static int running(long s) {
+        return (int) (s & RUNNING_MASK);
+    }
+
+    private static int working(long s) {
+        return (int) ((s >>> WORKING_SHIFT) & GROUP_MASK) - 1;
+    }
+
+    private static int last(long s) {
+        return (int) ((s >>> LAST_SHIFT) & GROUP_MASK) - 1;
+    }
+
+    /* Słowo s z pracującą grupą groupId - dla groupId != -1 zostaje ona też ostatnio pracującą. */
+    private static long withWorking(long s, int groupId) {
+        s = (s & ~(GROUP_MASK << WORKING_SHIFT)) | ((long) (groupId + 1) << WORKING_SHIFT);
+        if (groupId != -1) {
+            s = (s & ~(GROUP_MASK << LAST_SHIFT)) | ((long) (groupId + 1) << LAST_SHIFT);
+        }
+        return s;
+    }
+
+    /* Wejście jednym CAS-em - możliwe, gdy nikt nie czeka, a pracuje nasza grupa lub nikt. */
+    private boolean tryEnterWithoutMutex(int groupId) {
+        while (true) {
+            long s = state.get();
+            int working = working(s);
+            if ((s & WAITING) != 0 || (working != -1 && working != groupId)) {
+                return false;
+            }
+            long next = working == -1 ? withWorking(s + 1, groupId) : s + 1;
+            if (state.compareAndSet(s, next)) {
+                if (working == -1 && last(s) != -1 && last(s) != groupId) {
+                    countGroupSwitch();
+                }
+                return true;
+            }
+        }
+    }
+
+    @Override
+    void enter(int groupId) throws InterruptedException {
+        if (!tryEnterWithoutMutex(groupId)) {
+            super.enter(groupId);
+        }
+    }
+
+    @Override
+    boolean tryEnter(int groupId, long timeoutNanos) throws InterruptedException {
+        return tryEnterWithoutMutex(groupId) || super.tryEnter(groupId, timeoutNanos);
+    }
+
+    @Override
+    void enterAsync(int groupId, Runnable onAdmitted) {
+        if (tryEnterWithoutMutex(groupId)) {
+            onAdmitted.run();
+        } else {
+            super.enterAsync(groupId, onAdmitted);
+        }
+    }
+
+    @Override
+    void exit() {
+        while (true) {
+            long s = state.get();
+            int running = running(s);
+            if (running == 1 && (s & WAITING) != 0) {
+                /* Jesteśmy ostatni, a ktoś czeka - przekazujemy sekcję przez zwykły protokół. */
+                super.exit();
+                return;
+            }
+            long next = running == 1 ? withWorking(s - 1, -1) : s - 1;
+            if (state.compareAndSet(s, next)) {
+                return;
+            }
+        }
+    }
+
+    /* Po zajęciu mutexa ustawiamy flagę, żeby nikt nie wchodził ani nie oddawał sekcji bez
+       mutexa, dopóki nie zdecydujemy, co dalej. */
+    @Override
+    void lock() {
+        super.lock();
+        while (true) {
+            long s = state.get();
+            if ((s & WAITING) != 0) {
+                return;
+            }
+            if (state.compareAndSet(s, s | WAITING)) {
+                if (working(s) != -1) {
+                    restartIteration();
+                }
+                return;
+            }
+        }
+    }
+
+    /* Przed oddaniem mutexa zdejmujemy flagę, jeśli nikt już nie czeka. */
+    @Override
+    void unlock() {
+        if (!hasWaitingProcesses()) {
+            while (true) {
+                long s = state.get();
+                if (state.compareAndSet(s, s & ~WAITING)) {
+                    break;
+                }
+            }
+        }
+        super.unlock();
+    }
+
+    @Override
+    int getWorkingGroup() {
+        return working(state.get());
+    }
+
+    @Override
+    void setWorkingGroup(int groupId) {
+        while (true) {
+            long s = state.get();
+            if (state.compareAndSet(s, withWorking(s, groupId))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    int getNumberOfRunningProcesses() {
+        return running(state.get());
+    }
+
+    @Override
+    int addRunningProcesses(int delta) {
+        return running(state.addAndGet(delta));
+    }
+}
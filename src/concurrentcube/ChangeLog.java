@@ -0,0 +1,41 @@
+package concurrentcube;
+
+/* Ograniczony bufor cykliczny ostatnich modyfikacji kostki. Modyfikacja, po której stan ma
+   wersję version, leży w komórce version % capacity - starsze wpisy są nadpisywane.
+   Obrót (side, layer) jest zapisywany jako side * size + layer, a reset jako RESET.
+
+   Wpisy są zapisywane przez procesy obracające, a czytane przez proces w grupie
+   pokazywania, więc protokół wejścia zapewnia, że czytający widzi wszystkie wpisy
+   zakończonych obrotów. */
+final class ChangeLog {
+    static final int RESET = -1;
+
+    private final int[] moves;
+    private final long firstVersion; // Wersja stanu, od której zaczyna się historia.
+
+    ChangeLog(int capacity, long firstVersion) {
+        this.moves = new int[capacity];
+        this.firstVersion = firstVersion;
+    }
+
+    int capacity() {
+        return moves.length;
+    }
+
+    void record(long version, int move) {
+        if (moves.length > 0) {
+            moves[(int) (version % moves.length)] = move;
+        }
+    }
+
+    /* Czy historia zawiera wszystkie modyfikacje od wersji since do wersji version. */
+    boolean covers(long since, long version) {
+        return since >= firstVersion && since <= version && version - since <= moves.length;
+    }
+
+    /* Modyfikacja, po której stan miał wersję version. Wynik ma sens tylko wtedy, gdy
+       covers() potwierdza, że wpis nie został nadpisany. */
+    int get(long version) {
+        return moves[(int) (version % moves.length)];
+    }
+}
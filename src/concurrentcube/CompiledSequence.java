@@ -0,0 +1,89 @@
+package concurrentcube;
+
+/* Ciąg obrotów złożony przez Cube.compile() w jedną permutację kwadratów. Permutacja jest
+   zapisana we współrzędnych (ściana, wiersz, kolumna) widzianych z zewnątrz, więc nie zależy
+   od orientacji ścian i można ją wykonywać wielokrotnie na każdej kostce tego samego rozmiaru:
+   kolor kwadratu k z sources trafia na kwadrat k z targets, a pozostałe kwadraty się nie
+   zmieniają. Kwadrat k to (sides[k], rows[k], columns[k]) odpowiedniej tablicy Squares. */
+public final class CompiledSequence {
+    private final int size;
+    private final int[] sides;
+    private final int[] layers;
+    private final int groupId;
+    private final int[] layerIds; // Rosnąco.
+    private final Squares targets;
+    private final Squares sources;
+
+    /* Współrzędne kolejnych kwadratów. */
+    static final class Squares {
+        final int[] sides;
+        final int[] rows;
+        final int[] columns;
+
+        Squares(int length) {
+            this.sides = new int[length];
+            this.rows = new int[length];
+            this.columns = new int[length];
+        }
+
+        int length() {
+            return sides.length;
+        }
+
+        void set(int k, int side, int row, int column) {
+            sides[k] = side;
+            rows[k] = row;
+            columns[k] = column;
+        }
+    }
+
+    CompiledSequence(int size, int[] sides, int[] layers, int groupId, int[] layerIds,
+                     Squares targets, Squares sources) {
+        this.size = size;
+        this.sides = sides;
+        this.layers = layers;
+        this.groupId = groupId;
+        this.layerIds = layerIds;
+        this.targets = targets;
+        this.sources = sources;
+    }
+
+    /* Rozmiar kostki, dla której ciąg został skompilowany. */
+    public int size() {
+        return size;
+    }
+
+    /* Liczba obrotów ciągu. */
+    public int length() {
+        return sides.length;
+    }
+
+    /* Liczba kwadratów, które ciąg przesuwa. */
+    public int movedStickers() {
+        return targets.length();
+    }
+
+    int side(int i) {
+        return sides[i];
+    }
+
+    int layer(int i) {
+        return layers[i];
+    }
+
+    int groupId() {
+        return groupId;
+    }
+
+    int[] layerIds() {
+        return layerIds;
+    }
+
+    Squares targets() {
+        return targets;
+    }
+
+    Squares sources() {
+        return sources;
+    }
+}
@@ -1,11 +1,29 @@
 package concurrentcube;
 
+import java.lang.invoke.VarHandle;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Duration;
 import java.util.Arrays;
 import java.util.Random;
 import java.util.function.BiConsumer;
-import java.util.concurrent.Semaphore;
+import java.util.function.BooleanSupplier;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
-public class Cube {
+public class Cube implements AutoCloseable {
     private final int UP = 0;
     private final int LEFT = 1;
     private final int FRONT = 2;
@@ -13,69 +31,119 @@ public class Cube {
     private final int BACK = 4;
     private final int DOWN = 5;
     private final int SIDES = 6;
-    private final int ADJACENT_SIDES = 4;
     private final int GROUPS = 4;
+    // Id grupy wykonującej pokazywanie kostki.
+    private final int SHOW = 3;
+    // Liczba prób optymistycznego odczytu przed wejściem do protokołu.
+    private final int OPTIMISTIC_ATTEMPTS = 4;
 
     private final int size;
-    private final BiConsumer<Integer, Integer> beforeRotation;
-    private final BiConsumer<Integer, Integer> afterRotation;
+    private final RotationListener beforeRotation;
+    private final RotationListener afterRotation;
     private final Runnable beforeShowing;
     private final Runnable afterShowing;
-    private final int[][][] cube = new int[SIDES][][]; // Kolory kwadratów.
+    private final Stickers stickers; // Kolory kwadratów.
     private final int[] oppositeSide = new int[SIDES]; // Przeciwne ściany.
     private final int[][] adjacentSides = new int[SIDES][]; // Sąsiadujące ściany.
 
-    /* Id pracującej grupy. */
-    private int workingGroup = -1;
+    /* Protokół wejścia grup do sekcji krytycznej. */
+    private final GroupProtocol protocol;
 
-    /* Tablica semaforów do wieszania procesów z danych grup. */
-    private final Semaphore[] groups = new Semaphore[GROUPS];
+    /* Blokady warstw, na których czekają procesy z pracującej grupy robiącej obroty,
+       gdy warstwa, na której chcą dokonać obrotu, jest zajęta przez inny proces. */
+    private final LayerLocks layers;
+
+    /* Liczniki rozpoczętych i zakończonych modyfikacji stanu kostki (obrotów i resetów).
+       Gdy są równe, żadna modyfikacja nie jest w toku, a ich wartość jest wersją stanu -
+       na tej podstawie optymistyczny odczyt sprawdza, czy skopiowany stan jest spójny. */
+    private final AtomicLong startedModifications;
+    private final AtomicLong finishedModifications;
+
+    /* Historia ostatnich modyfikacji dla showChangesSince(). */
+    private final ChangeLog changeLog;
 
-    /* Mutex - semafor binarny mutex realizujący wzajemne wykluczanie. */
-    private final Semaphore mutex = new Semaphore(1, true);
+    /* Ostatni napis zwrócony przez show() wraz z wersją stanu, w której go odczytano. */
+    private static final class ShownState {
+        private final long version;
+        private final String cubeState;
 
-    /* Liczba pracujących procesów. */
-    private int numberOfRunningProcesses = 0;
+        private ShownState(long version, String cubeState) {
+            this.version = version;
+            this.cubeState = cubeState;
+        }
+    }
 
-    /* Semafor, na którym wieszają się reprezentanci danych grup - pierwsze procesy,
-       które przyjdą. */
-    private final Semaphore representatives = new Semaphore(0, true);
+    private volatile ShownState lastShown = null;
 
-    /* Liczba czekających na wykonanie procesów z danej grupy. */
-    private final int[] numberOfWaitingProcesses = new int[GROUPS];
+    /* Czy show() najpierw próbuje odczytać stan optymistycznie, bez protokołu. */
+    private final boolean optimisticShowing;
 
-    /* Liczba czekających reprezentantów. */
-    private int numberOfWaitingGroups = 0;
+    /* Rozmiar kostki, od którego pojedynczy obrót jest dzielony na podzadania w ForkJoinPool
+       (0 - nigdy), i największa liczba kwadratów pierścienia obracana w jednym podzadaniu. */
+    private final int parallelRotationThreshold;
+    private final int parallelRotationChunk;
 
-    /* Tablica semaforów, na których wieszają się procesy z pracującej grupy robiącej obroty,
-       gdy warstwa, na której chcą dokonać obrotu, jest zajęta przez inny proces. */
-    private final Semaphore[] layers;
+    /* Opisy pasów pierścieni (zob. buildStrips()) lub null, jeśli nie są potrzebne - obroty
+       korzystają z nich tylko przy precomputedRotations, a liczniki misplaced zawsze. */
+    private final int[][] strips;
+    private final boolean precomputedRotations;
 
-    /* Sztuczny limit na maksymalną liczbę procesów z grupy pracującej dopuszczonych do wykonania
-       operacji w danej iteracji - wejścia do sekcji krytycznej. Na wypadek, gdyby procesy z
-       pracującej obecnie grupy przychodziły w nieskończoność, a na wykonanie oczekiwał proces
-       z innej grupy, przy ustawionym limicie na pewno nie dojdzie do zagłodzenia. */
-    private final int groupLimit;
+    /* Liczba kwadratów każdej ściany o kolorze innym niż numer ściany lub null, jeśli kostka
+       jej nie śledzi. Obroty z jednej grupy zmieniają liczniki współbieżnie, więc są atomowe,
+       a spójny odczyt zapewnia protokół (lub liczniki modyfikacji). */
+    private final AtomicInteger[] misplaced;
 
-    /* Liczba procesów z grupy pracującej dopuszczonych do wykonania operacji w danej iteracji. */
-    private int numberOfLetInProcesses = 0;
+    /* Dziennik obrotów lub null, jeśli kostka go nie prowadzi. */
+    private final MoveLog moveLog;
+
+    /* Wątek wywołujący beforeRotation i afterRotation poza obrotami lub null, jeśli są
+       wywoływane bezpośrednio (zob. CubeOptions.asyncRotationListeners()). */
+    private final RotationEventDispatcher listenerDispatcher;
+
+    /* Wykonawca operacji asynchronicznych. */
+    private final Executor executor;
+
+    /* Subskrybenci strumienia zdarzeń obrotów - zob. rotations(). */
+    private final RotationPublisher rotationPublisher;
+
+    /* Czasy oczekiwania na zajętą warstwę - zob. getStats(). */
+    private final LatencyHistogram layerWaits = new LatencyHistogram();
 
     public Cube(int size,
                 BiConsumer<Integer, Integer> beforeRotation,
                 BiConsumer<Integer, Integer> afterRotation,
                 Runnable beforeShowing,
                 Runnable afterShowing) {
+        this(size, beforeRotation::accept, afterRotation::accept, beforeShowing, afterShowing,
+             new CubeOptions());
+    }
+
+    public Cube(int size,
+                RotationListener beforeRotation,
+                RotationListener afterRotation,
+                Runnable beforeShowing,
+                Runnable afterShowing,
+                CubeOptions options) {
         this.size = size;
-        this.beforeRotation = beforeRotation;
-        this.afterRotation = afterRotation;
+        if (options.getListenerBufferCapacity() > 0) {
+            this.listenerDispatcher = new RotationEventDispatcher(options.getListenerBufferCapacity(),
+                                                                  beforeRotation, afterRotation);
+            this.beforeRotation = listenerDispatcher.before();
+            this.afterRotation = listenerDispatcher.after();
+        } else {
+            this.listenerDispatcher = null;
+            this.beforeRotation = beforeRotation;
+            this.afterRotation = afterRotation;
+        }
         this.beforeShowing = beforeShowing;
         this.afterShowing = afterShowing;
-        for (int side = 0; side < SIDES; side++) {
-            this.cube[side] = new int[size][size];
-            for (int row = 0; row < size; row++) {
-                Arrays.fill(this.cube[side][row], side);
-            }
+        if (options.getStateFile() != null) {
+            this.stickers = MappedStickers.open(options.getStateFile(), SIDES, size);
+        } else {
+            this.stickers = new Stickers(SIDES, size);
         }
+        this.startedModifications = new AtomicLong(stickers.version());
+        this.finishedModifications = new AtomicLong(stickers.version());
         for (int side = 0; side < SIDES; side++) {
             switch (side) {
                 case UP :
@@ -102,19 +170,38 @@ public class Cube {
                     break;
             }
         }
-        for (int i = 0; i < 4; i++) {
-            this.groups[i] = new Semaphore(0);
+        this.layers = new LayerLocks(size);
+        int groupLimit = 10 * size;
+        AdaptiveGroupLimit adaptiveGroupLimit = null;
+        if (options.getMaxGroupWaitingTime() != null) {
+            adaptiveGroupLimit = new AdaptiveGroupLimit(options.getMaxGroupWaitingTime().toNanos(),
+                                                        groupLimit, 1, 1000 * size);
         }
-        Arrays.fill(numberOfWaitingProcesses, 0);
-        this.layers = new Semaphore[size];
-        for (int i = 0; i < size; i++) {
-            this.layers[i] = new Semaphore(1);
+        if (options.isLockFreeAdmission()) {
+            this.protocol = new AtomicGroupProtocol(GROUPS, groupLimit, adaptiveGroupLimit,
+                                                    options.getSchedulingPolicy(), SHOW);
+        } else {
+            this.protocol = new GroupProtocol(GROUPS, groupLimit, adaptiveGroupLimit,
+                                              options.getSchedulingPolicy(), SHOW);
         }
-        this.groupLimit = 10 * size;
-    }
-
-    private int[][] getSide(int side) {
-        return cube[side];
+        this.optimisticShowing = options.isOptimisticShowing();
+        this.executor = options.getExecutor();
+        this.rotationPublisher = new RotationPublisher(executor);
+        this.changeLog = new ChangeLog(options.getChangeLogCapacity(), stickers.version());
+        this.precomputedRotations = options.isPrecomputedRotations();
+        this.strips = precomputedRotations || options.isSolvedTracking() ? buildStrips() : null;
+        if (options.isSolvedTracking()) {
+            this.misplaced = new AtomicInteger[SIDES];
+            for (int side = 0; side < SIDES; side++) {
+                misplaced[side] = new AtomicInteger(stickers.countMisplaced(side));
+            }
+        } else {
+            this.misplaced = null;
+        }
+        this.parallelRotationThreshold = options.getParallelRotationThreshold();
+        this.moveLog = options.getMoveLogFile() != null
+                       ? MoveLog.open(options.getMoveLogFile(), size) : null;
+        this.parallelRotationChunk = Math.max(1, size / (8 * ForkJoinPool.getCommonPoolParallelism()));
     }
 
     public int getOppositeSide(int side) {
@@ -137,36 +224,9 @@ public class Cube {
         return layer == size - 1;
     }
 
-    /* Funkcja obracająca zgodnie z ruchem wskazówek zegara daną ścianę. */
-    private void rotateSideClockwise(int side) {
-        int[][] cubeSide = getSide(side);
-        for (int i = 0; i < size / 2; i++) {
-            for (int j = i; j < size - i - 1; j++) {
-                int temp = cubeSide[i][j];
-                cubeSide[i][j] = cubeSide[size - j - 1][i];
-                cubeSide[size - j - 1][i] = cubeSide[size - i - 1][size - j - 1];
-                cubeSide[size - i - 1][size - j - 1] = cubeSide[j][size - i - 1];
-                cubeSide[j][size - i - 1] = temp;
-            }
-        }
-    }
-
-    /* Funkcja obracająca przeciwnie do ruchu wskazówek zegara daną ścianę. */
-    private void rotateSideCounterclockwise(int side) {
-        int[][] cubeSide = getSide(side);
-        for (int i = 0; i < size / 2; i++) {
-            for (int j = i; j < size - i - 1; j++) {
-                int temp = cubeSide[i][j];
-                cubeSide[i][j] = cubeSide[j][size - i - 1];
-                cubeSide[j][size - i - 1] = cubeSide[size - i - 1][size - i - 1 - (j - i)];
-                cubeSide[size - i - 1][size - i - 1 - (j - i)] = cubeSide[size - i - 1 - (j - i)][i];
-                cubeSide[size - i - 1 - (j - i)][i] = temp;
-            }
-        }
-    }
-
-    /* Funkcja wywoływana przy obrotach w płaszczyźnie UP/DOWN. */
-    private void rotateRows(int side, int layer) {
+    /* Funkcja wywoływana przy obrotach w płaszczyźnie UP/DOWN - przesuwa kwadraty
+       o numerach [from, to) pierścienia. */
+    private void rotateRows(int side, int layer, int from, int to) {
         int[] neighbours = getAdjacentSides(side);
         int row = -1;
         switch (side) {
@@ -177,17 +237,17 @@ public class Cube {
                 row = getOppositeLayer(layer);
                 break;
         }
-        for (int column = 0; column < size; column++) {
-            int temp = cube[neighbours[0]][row][column];
-            for (int i = 0; i < ADJACENT_SIDES - 1; i++) {
-                cube[neighbours[i]][row][column] = cube[neighbours[i + 1]][row][column];
-            }
-            cube[neighbours[ADJACENT_SIDES - 1]][row][column] = temp;
-        }
+        /* Wiersze sąsiednich ścian to pasy - przy orientacji 0 ciągłe fragmenty tablicy,
+           które cycleStrips() przesuwa wektorowo. */
+        stickers.cycleStrips(stickers.index(neighbours[0], row, 0), stickers.step(neighbours[0], 0, 1),
+                             stickers.index(neighbours[1], row, 0), stickers.step(neighbours[1], 0, 1),
+                             stickers.index(neighbours[2], row, 0), stickers.step(neighbours[2], 0, 1),
+                             stickers.index(neighbours[3], row, 0), stickers.step(neighbours[3], 0, 1),
+                             from, to);
     }
 
     /* Funkcja wywoływana przy obrotach w płaszczyźnie LEFT/RIGHT. */
-    private void rotateColumns(int side, int layer) {
+    private void rotateColumns(int side, int layer, int from, int to) {
         int[] neighbours = getAdjacentSides(side);
         int column = -1;
         switch (side) {
@@ -199,38 +259,34 @@ public class Cube {
                 break;
         }
         int oppositeColumn = getOppositeLayer(column);
-        for (int row = 0; row < size; row++) {
+        for (int row = from; row < to; row++) {
             /* Pierwszą sąsiadującą ścianą jest BACK, więc musimy wyodrębnić
                operacje związane z nią (z powodu nieco innej numeracji). */
-            int temp = cube[neighbours[0]][size - row - 1][oppositeColumn];
-            cube[neighbours[0]][size - row - 1][oppositeColumn] = cube[neighbours[1]][row][column];
-            for (int i = 1; i < ADJACENT_SIDES - 1; i++) {
-                cube[neighbours[i]][row][column] = cube[neighbours[i + 1]][row][column];
-            }
-            cube[neighbours[ADJACENT_SIDES - 1]][row][column] = temp;
+            stickers.cycle(stickers.index(neighbours[0], size - row - 1, oppositeColumn),
+                           stickers.index(neighbours[1], row, column),
+                           stickers.index(neighbours[2], row, column),
+                           stickers.index(neighbours[3], row, column));
         }
     }
 
     /* Funkcja wywoływana przy obrotach w płaszczyźnie FRONT/BACK. */
-    private void rotateRowsAndColumns(int side, int layer) {
+    private void rotateRowsAndColumns(int side, int layer, int from, int to) {
         int oppositeLayer = getOppositeLayer(layer);
         switch (side) {
             case FRONT:
-                for (int i = 0; i < size; i++) {
-                    int temp = cube[UP][oppositeLayer][i];
-                    cube[UP][oppositeLayer][i] = cube[LEFT][size - i - 1][oppositeLayer];
-                    cube[LEFT][size - i - 1][oppositeLayer] = cube[DOWN][layer][size - i - 1];
-                    cube[DOWN][layer][size - i - 1] = cube[RIGHT][i][layer];
-                    cube[RIGHT][i][layer] = temp;
+                for (int i = from; i < to; i++) {
+                    stickers.cycle(stickers.index(UP, oppositeLayer, i),
+                                   stickers.index(LEFT, size - i - 1, oppositeLayer),
+                                   stickers.index(DOWN, layer, size - i - 1),
+                                   stickers.index(RIGHT, i, layer));
                 }
                 break;
             case BACK:
-                for (int i = 0; i < size; i++) {
-                    int temp = cube[DOWN][oppositeLayer][i];
-                    cube[DOWN][oppositeLayer][i] = cube[LEFT][i][layer];
-                    cube[LEFT][i][layer] = cube[UP][layer][size - i - 1];
-                    cube[UP][layer][size - i - 1] = cube[RIGHT][size - i - 1][oppositeLayer];
-                    cube[RIGHT][size - i - 1][oppositeLayer] = temp;
+                for (int i = from; i < to; i++) {
+                    stickers.cycle(stickers.index(DOWN, oppositeLayer, i),
+                                   stickers.index(LEFT, i, layer),
+                                   stickers.index(UP, layer, size - i - 1),
+                                   stickers.index(RIGHT, size - i - 1, oppositeLayer));
                 }
                 break;
         }
@@ -281,191 +337,1046 @@ public class Cube {
         }
     }
 
-    /* Funkcja czekająca w protokole wstępnym. */
-    private void wait(int groupId) throws InterruptedException {
-        numberOfWaitingProcesses[groupId]++;
-        if (numberOfWaitingProcesses[groupId] == 1) {
-            /* Jesteśmy pierwszym procesem z naszej grupy - zostajemy reprezentantem. */
-            numberOfWaitingGroups++;
-            /* Oddajemy mutexa. */
-            mutex.release();
-            /* Próbujemy zawiesić się na semaforze dla reprezentantów - jeśli wątek
-               zostanie przerwany cofamy dotychczasowe zmiany używając mutexa. */
-            try {
-                representatives.acquire();
-            } catch (InterruptedException e) {
-                Thread.currentThread().interrupt();
-                mutex.acquireUninterruptibly();
-                numberOfWaitingGroups--;
-                numberOfWaitingProcesses[groupId]--;
-                mutex.release();
-                throw e;
-            }
-            /* Odziedziczyliśmy mutexa - oznajmiamy, że nasza grupa będzie pracować. */
-            workingGroup = groupId;
-            numberOfWaitingGroups--;
+    /* Protokół wstępny przed wykonaniem operacji. */
+    private void preProtocol(int groupId) throws InterruptedException {
+        protocol.enter(groupId);
+    }
+
+    /* Protokół końcowy po wykonaniu operacji. */
+    private void postProtocol() {
+        protocol.exit();
+    }
+
+    /* Właściwa funkcja dokonująca obrotu na kostce. */
+    void performARotation(int side, int layer) {
+        if (misplaced != null) {
+            countMisplacedChanges(side, layer);
+        }
+        /* Obroty całych ścian zmieniają tylko ich orientację. */
+        if (isTheFirstLayer(layer)) {
+            stickers.turn(side, 1);
+        }
+        if (isTheLastLayer(layer)) {
+            stickers.turn(oppositeSide[side], 3);
+        }
+        if (parallelRotationThreshold > 0 && size >= parallelRotationThreshold) {
+            ForkJoinPool.commonPool().invoke(new RingRotation(side, layer, 0, size));
         } else {
-            /* Oddajemy mutexa. */
-            mutex.release();
-            /* Próbujemy zawiesić się na semaforze dla grup - jeśli wątek
-               zostanie przerwany cofamy dotychczasowe zmiany używając mutexa. */
+            rotateRing(side, layer, 0, size);
+        }
+    }
+
+    /* Przesuwa kwadraty o numerach [from, to) pierścienia obracanej warstwy. */
+    private void rotateRing(int side, int layer, int from, int to) {
+        if (precomputedRotations) {
+            rotateStrips(side, layer, from, to);
+            return;
+        }
+        switch (side) {
+            case UP:
+            case DOWN:
+                rotateRows(side, layer, from, to);
+                break;
+            case LEFT:
+            case RIGHT:
+                rotateColumns(side, layer, from, to);
+                break;
+            case FRONT:
+            case BACK:
+                rotateRowsAndColumns(side, layer, from, to);
+                break;
+        }
+    }
+
+    /* Opisy pasów wyliczone z góry dla każdej pary (side, layer) - pierścień obracanej
+       warstwy to cztery pasy po size kwadratów, a pas to ściana, wiersz i kolumna jego
+       pierwszego kwadratu oraz przesunięcie (w wierszach i kolumnach) do kolejnego, podane
+       niezależnie od orientacji ścian. Kolejność pasów jest kolejnością przesuwania
+       w cycle(). */
+    private static final int STRIP = 5;
+    private static final int RING = 4 * STRIP;
+
+    private int[][] buildStrips() {
+        int[][] strips = new int[SIDES][size * RING];
+        for (int side = 0; side < SIDES; side++) {
+            for (int layer = 0; layer < size; layer++) {
+                fillRing(strips[side], layer * RING, side, layer);
+            }
+        }
+        return strips;
+    }
+
+    /* Zapisuje do ring od pozycji offset cztery pasy pierścienia warstwy layer ściany side. */
+    private void fillRing(int[] ring, int offset, int side, int layer) {
+        int oppositeLayer = getOppositeLayer(layer);
+        int[] neighbours = getAdjacentSides(side);
+        switch (side) {
+            case UP:
+            case DOWN: {
+                int row = side == UP ? layer : oppositeLayer;
+                for (int k = 0; k < 4; k++) {
+                    setStrip(ring, offset + k * STRIP, neighbours[k], row, 0, 0, 1);
+                }
+                break;
+            }
+            case LEFT:
+            case RIGHT: {
+                int column = side == LEFT ? layer : oppositeLayer;
+                setStrip(ring, offset, neighbours[0], size - 1, getOppositeLayer(column), -1, 0);
+                for (int k = 1; k < 4; k++) {
+                    setStrip(ring, offset + k * STRIP, neighbours[k], 0, column, 1, 0);
+                }
+                break;
+            }
+            case FRONT:
+                setStrip(ring, offset, UP, oppositeLayer, 0, 0, 1);
+                setStrip(ring, offset + STRIP, LEFT, size - 1, oppositeLayer, -1, 0);
+                setStrip(ring, offset + 2 * STRIP, DOWN, layer, size - 1, 0, -1);
+                setStrip(ring, offset + 3 * STRIP, RIGHT, 0, layer, 1, 0);
+                break;
+            case BACK:
+                setStrip(ring, offset, DOWN, oppositeLayer, 0, 0, 1);
+                setStrip(ring, offset + STRIP, LEFT, 0, layer, 1, 0);
+                setStrip(ring, offset + 2 * STRIP, UP, layer, size - 1, 0, -1);
+                setStrip(ring, offset + 3 * STRIP, RIGHT, size - 1, oppositeLayer, -1, 0);
+                break;
+            default:
+                throw new IllegalStateException("Unexpected value: " + side);
+        }
+    }
+
+    private static void setStrip(int[] ring, int offset, int side, int row, int column,
+                                 int dRow, int dColumn) {
+        ring[offset] = side;
+        ring[offset + 1] = row;
+        ring[offset + 2] = column;
+        ring[offset + 3] = dRow;
+        ring[offset + 4] = dColumn;
+    }
+
+    /* Przesunięcie kwadratów [from, to) pierścienia według wyliczonych z góry pasów - każdy pas
+       zamieniamy na początek i krok w tablicy kolorów przy obecnej orientacji jego ściany,
+       a resztę robi jedna pętla bez rozgałęzień. */
+    private void rotateStrips(int side, int layer, int from, int to) {
+        int[] ring = strips[side];
+        int offset = layer * RING;
+        stickers.cycleStrips(stripStart(ring, offset), stripStep(ring, offset),
+                             stripStart(ring, offset + STRIP), stripStep(ring, offset + STRIP),
+                             stripStart(ring, offset + 2 * STRIP), stripStep(ring, offset + 2 * STRIP),
+                             stripStart(ring, offset + 3 * STRIP), stripStep(ring, offset + 3 * STRIP),
+                             from, to);
+    }
+
+    /* Przed przesunięciem pierścienia obracanej warstwy liczy, o ile zmieni się liczba źle
+       położonych kwadratów na każdej z czterech ścian - pas k dostaje kolory pasa k + 1 -
+       i dodaje zmiany do liczników misplaced, po jednej operacji atomowej na ścianę. Obroty
+       całych ścian nie zmieniają kolorów na ścianach. */
+    private void countMisplacedChanges(int side, int layer) {
+        int[] ring = strips[side];
+        int offset = layer * RING;
+        int faceA = ring[offset];
+        int faceB = ring[offset + STRIP];
+        int faceC = ring[offset + 2 * STRIP];
+        int faceD = ring[offset + 3 * STRIP];
+        int aStep = stripStep(ring, offset);
+        int bStep = stripStep(ring, offset + STRIP);
+        int cStep = stripStep(ring, offset + 2 * STRIP);
+        int dStep = stripStep(ring, offset + 3 * STRIP);
+        int a = stripStart(ring, offset);
+        int b = stripStart(ring, offset + STRIP);
+        int c = stripStart(ring, offset + 2 * STRIP);
+        int d = stripStart(ring, offset + 3 * STRIP);
+        int changeA = 0;
+        int changeB = 0;
+        int changeC = 0;
+        int changeD = 0;
+        for (int i = 0; i < size; i++, a += aStep, b += bStep, c += cStep, d += dStep) {
+            int colorA = stickers.get(a);
+            int colorB = stickers.get(b);
+            int colorC = stickers.get(c);
+            int colorD = stickers.get(d);
+            changeA += (colorB != faceA ? 1 : 0) - (colorA != faceA ? 1 : 0);
+            changeB += (colorC != faceB ? 1 : 0) - (colorB != faceB ? 1 : 0);
+            changeC += (colorD != faceC ? 1 : 0) - (colorC != faceC ? 1 : 0);
+            changeD += (colorA != faceD ? 1 : 0) - (colorD != faceD ? 1 : 0);
+        }
+        addMisplaced(faceA, changeA);
+        addMisplaced(faceB, changeB);
+        addMisplaced(faceC, changeC);
+        addMisplaced(faceD, changeD);
+    }
+
+    private void addMisplaced(int side, int change) {
+        if (change != 0) {
+            misplaced[side].addAndGet(change);
+        }
+    }
+
+    /* Indeks pierwszego kwadratu i krok pasa zapisanego w ring od pozycji offset przy obecnej
+       orientacji jego ściany. */
+    private int stripStart(int[] ring, int offset) {
+        return stickers.index(ring[offset], ring[offset + 1], ring[offset + 2]);
+    }
+
+    private int stripStep(int[] ring, int offset) {
+        return stickers.step(ring[offset], ring[offset + 3], ring[offset + 4]);
+    }
+
+    /* Przesunięcie pierścienia dzielone na podzadania - każda czwórka kwadratów pierścienia jest
+       przestawiana niezależnie od pozostałych, więc przedziały można obracać równolegle. */
+    private final class RingRotation extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final int side;
+        private final int layer;
+        private final int from;
+        private final int to;
+
+        private RingRotation(int side, int layer, int from, int to) {
+            this.side = side;
+            this.layer = layer;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected void compute() {
+            if (to - from <= parallelRotationChunk) {
+                rotateRing(side, layer, from, to);
+            } else {
+                int middle = (from + to) >>> 1;
+                invokeAll(new RingRotation(side, layer, from, middle),
+                          new RingRotation(side, layer, middle, to));
+            }
+        }
+    }
+
+    /* Obrót wykonywany przez proces, który przeszedł już protokół wstępny dla grupy
+       danej ściany - zajmujemy warstwę, obracamy i zwalniamy warstwę. Zwraca pozycję
+       rekordu obrotu w dzienniku obrotów (0, jeśli kostka nie prowadzi dziennika). */
+    private long rotateInWorkingGroup(int side, int layer) throws InterruptedException {
+        int layerId = getLayerId(side, layer);
+        acquireLayer(layerId);
+        return rotateOnAcquiredLayer(side, layer, layerId);
+    }
+
+    /* Część rotateInWorkingGroup() po zajęciu warstwy - zwalnia warstwę po obrocie, także
+       gdy beforeRotation lub afterRotation rzuci wyjątek. */
+    private long rotateOnAcquiredLayer(int side, int layer, int layerId) {
+        try {
+            beforeRotation.accept(side, layer);
+            /* Obroty z jednej grupy są przemienne, a grupy nie pracują jednocześnie, więc
+               kolejność rekordów w dzienniku daje ten sam stan co kolejność wykonania. */
+            long logged = moveLog != null ? moveLog.append(side, layer) : 0;
+            stickers.beforeModification();
+            startedModifications.incrementAndGet();
+            performARotation(side, layer);
+            long version = finishedModifications.incrementAndGet();
+            changeLog.record(version, side * size + layer);
+            rotationPublisher.publish(version, side, layer);
+            afterRotation.accept(side, layer);
+            return logged;
+        } finally {
+            layers.release(layerId);
+        }
+    }
+
+    /* Zajmuje warstwę, a jeśli jest zajęta, czeka na nią i zapisuje czas czekania. */
+    private void acquireLayer(int layerId) throws InterruptedException {
+        if (!layers.tryAcquire(layerId)) {
+            long waitStart = System.nanoTime();
+            layers.acquire(layerId);
+            layerWaits.record(System.nanoTime() - waitStart);
+        }
+    }
+
+    /* Czeka, aż rekord obrotu na pozycji logged będzie na dysku. Wywoływana już po protokole
+       końcowym, żeby czekanie na zapis nie wstrzymywało innych procesów. */
+    private void awaitLogged(long logged) {
+        if (moveLog != null) {
+            moveLog.awaitDurable(logged);
+        }
+    }
+
+    public void rotate(int side, int layer) throws InterruptedException {
+        preProtocol(getGroupId(side));
+        /* Próbujemy zawiesić się na semaforze dla wartstwa - jeśli wątek
+           zostanie przerwany (albo funkcja obserwatora rzuci wyjątek), wykonujemy
+           protokół końcowy. */
+        long logged;
+        try {
+            logged = rotateInWorkingGroup(side, layer);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            postProtocol();
+        }
+        awaitLogged(logged);
+    }
+
+    /* Obrót, który rezygnuje, jeśli nie może się zacząć w czasie timeout - czas obejmuje
+       czekanie na kolej grupy i na warstwę. Zwraca false, jeśli obrót nie został wykonany;
+       czekanie jest wtedy wycofywane tak samo jak przy przerwaniu wątku. */
+    public boolean tryRotate(int side, int layer, Duration timeout) throws InterruptedException {
+        long deadline = System.nanoTime() + timeout.toNanos();
+        if (!protocol.tryEnter(getGroupId(side), timeout.toNanos())) {
+            return false;
+        }
+        int layerId = getLayerId(side, layer);
+        long logged;
+        try {
+            if (!layers.tryAcquire(layerId)) {
+                long waitStart = System.nanoTime();
+                boolean acquired = layers.tryAcquire(layerId, deadline - waitStart);
+                layerWaits.record(System.nanoTime() - waitStart);
+                if (!acquired) {
+                    return false;
+                }
+            }
+            logged = rotateOnAcquiredLayer(side, layer, layerId);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            postProtocol();
+        }
+        awaitLogged(logged);
+        return true;
+    }
+
+    /* Wykonuje kolejno obroty (sides[i], layers[i]). Obroty w tej samej płaszczyźnie są
+       przemienne, ale obroty z różnych płaszczyzn już nie, więc nie zmieniamy kolejności -
+       dzielimy ciąg na serie kolejnych obrotów z tej samej grupy i dla każdej serii
+       przechodzimy protokół wstępny i końcowy tylko raz. Jeśli wątek zostanie przerwany,
+       obroty sprzed przerwania pozostają wykonane. */
+    public void rotateBatch(int[] sides, int[] layers) throws InterruptedException {
+        if (sides.length != layers.length) {
+            throw new IllegalArgumentException("Sides and layers differ in length: "
+                                               + sides.length + " != " + layers.length);
+        }
+        int start = 0;
+        while (start < sides.length) {
+            int groupId = getGroupId(sides[start]);
+            int end = start + 1;
+            while (end < sides.length && getGroupId(sides[end]) == groupId) {
+                end++;
+            }
+            preProtocol(groupId);
+            long logged = 0;
             try {
-                groups[groupId].acquire();
+                for (int i = start; i < end; i++) {
+                    logged = rotateInWorkingGroup(sides[i], layers[i]);
+                }
             } catch (InterruptedException e) {
                 Thread.currentThread().interrupt();
-                mutex.acquireUninterruptibly();
-                numberOfWaitingProcesses[groupId]--;
-                mutex.release();
                 throw e;
+            } finally {
+                postProtocol();
             }
-            /* Odziedziczyliśmy mutexa. */
+            awaitLogged(logged);
+            start = end;
         }
-        /* Posiadamy mutex - możemy zaktualizować wartości zmiennych. */
-        numberOfWaitingProcesses[groupId]--;
-        numberOfRunningProcesses++;
-        /* Kaskadowe budzenie innych procesów z naszej grupy - jeśli nie osiągneliśmy
-           limitu wpuszczonych procesów lub żadna inna grupa nie czeka. */
-        if (numberOfWaitingProcesses[groupId] > 0
-            && (numberOfLetInProcesses < groupLimit || numberOfWaitingGroups == 0)) {
-                groups[groupId].release();
-        } else {
-            mutex.release();
+    }
+
+    /* Składa ciąg obrotów (sides[i], layers[i]) w jedną permutację kwadratów, którą
+       rotate(CompiledSequence) wykonuje w jednym przejściu. Permutację liczymy na etykietach
+       pozycji z napisu show() - stan ułożony z etykietą p na pozycji p obracamy kolejno
+       wszystkimi obrotami ciągu i zapamiętujemy, skąd przyszła etykieta na każdej pozycji. */
+    public CompiledSequence compile(int[] sides, int[] layers) {
+        if (sides.length != layers.length) {
+            throw new IllegalArgumentException("Sides and layers differ in length: "
+                                               + sides.length + " != " + layers.length);
+        }
+        int sideArea = size * size;
+        int[] labels = new int[SIDES * sideArea];
+        for (int i = 0; i < labels.length; i++) {
+            labels[i] = i;
         }
+        int[] ring = new int[RING];
+        boolean[] touchedLayers = new boolean[size];
+        boolean crossAxis = false;
+        for (int i = 0; i < sides.length; i++) {
+            int side = sides[i];
+            int layer = layers[i];
+            if (side < 0 || side >= SIDES) {
+                throw new IllegalArgumentException("Unexpected value: " + side);
+            }
+            if (layer < 0 || layer >= size) {
+                throw new IllegalArgumentException("Unexpected value: " + layer);
+            }
+            crossAxis |= getGroupId(side) != getGroupId(sides[0]);
+            touchedLayers[getLayerId(side, layer)] = true;
+            if (isTheFirstLayer(layer)) {
+                turnLabels(labels, side);
+            }
+            if (isTheLastLayer(layer)) {
+                for (int k = 0; k < 3; k++) {
+                    turnLabels(labels, oppositeSide[side]);
+                }
+            }
+            fillRing(ring, 0, side, layer);
+            for (int j = 0; j < size; j++) {
+                int a = ringLabel(ring, 0, j);
+                int b = ringLabel(ring, STRIP, j);
+                int c = ringLabel(ring, 2 * STRIP, j);
+                int d = ringLabel(ring, 3 * STRIP, j);
+                int temp = labels[a];
+                labels[a] = labels[b];
+                labels[b] = labels[c];
+                labels[c] = labels[d];
+                labels[d] = temp;
+            }
+        }
+        /* Ciąg z kilku płaszczyzn nie jest przemienny z żadnym obrotem, więc wykonuje się sam -
+           zajmuje wszystkie warstwy swojej grupy, a inne grupy wyklucza protokół. */
+        int layerCount = 0;
+        for (int layerId = 0; layerId < size; layerId++) {
+            if (crossAxis || touchedLayers[layerId]) {
+                touchedLayers[layerId] = true;
+                layerCount++;
+            }
+        }
+        int[] layerIds = new int[layerCount];
+        for (int layerId = 0, j = 0; layerId < size; layerId++) {
+            if (touchedLayers[layerId]) {
+                layerIds[j++] = layerId;
+            }
+        }
+        int moved = 0;
+        for (int p = 0; p < labels.length; p++) {
+            if (labels[p] != p) {
+                moved++;
+            }
+        }
+        CompiledSequence.Squares targets = new CompiledSequence.Squares(moved);
+        CompiledSequence.Squares sources = new CompiledSequence.Squares(moved);
+        for (int p = 0, j = 0; p < labels.length; p++) {
+            if (labels[p] != p) {
+                int source = labels[p];
+                targets.set(j, p / sideArea, p % sideArea / size, p % size);
+                sources.set(j, source / sideArea, source % sideArea / size, source % size);
+                j++;
+            }
+        }
+        int groupId = sides.length > 0 ? getGroupId(sides[0]) : 0;
+        return new CompiledSequence(size, sides.clone(), layers.clone(), groupId, layerIds,
+                                    targets, sources);
     }
 
-    /* Protokół wstępny przed wykonaniem operacji. */
-    private void preProtocol(int groupId) throws InterruptedException {
-        /* Wieszamy się na mutexie. */
-        mutex.acquireUninterruptibly();
-        if (workingGroup != -1 && workingGroup != groupId) {
-            /* Inna grupa obecnie pracuje - wchodzimy do funkcji czekającej
-               posiadając mutexa. */
-            wait(groupId);
-        } else {
-            if (workingGroup == groupId) {
-                /* Nasza grupa pracuje. */
-                if (numberOfLetInProcesses < groupLimit || numberOfWaitingGroups == 0) {
-                    /* Nie przekroczyliśmy limitu lub nie ma innych czekających grup. */
-                    numberOfLetInProcesses++;
-                    numberOfRunningProcesses++;
-                    /* Oddajemy mutexa. */
-                    mutex.release();
-                } else {
-                    /* Osiągneliśmy limit - proces musi poczekać - wchodzimy do funkcji
-                       czekającej posiadając mutexa. */
-                    wait(groupId);
+    /* Obrót ściany side o ćwierćobrót zgodnie z ruchem wskazówek zegara na etykietach -
+       etykieta (row, column) to ta, która była w (size - 1 - column, row). */
+    private void turnLabels(int[] labels, int side) {
+        int sideArea = size * size;
+        int[] turned = new int[sideArea];
+        for (int row = 0; row < size; row++) {
+            for (int column = 0; column < size; column++) {
+                turned[row * size + column] = labels[side * sideArea + (size - 1 - column) * size + row];
+            }
+        }
+        System.arraycopy(turned, 0, labels, side * sideArea, sideArea);
+    }
+
+    /* Pozycja w napisie show() kwadratu numer i pasa zapisanego w ring od pozycji offset. */
+    private int ringLabel(int[] ring, int offset, int i) {
+        return stickers.shownIndex(ring[offset], ring[offset + 1] + i * ring[offset + 3],
+                                   ring[offset + 2] + i * ring[offset + 4]);
+    }
+
+    /* Wykonuje skompilowany ciąg obrotów jako jedną operację - po jednym przejściu protokołu
+       i jednym przejściu po przesuwanych kwadratach, niezależnie od długości ciągu. Ciąg
+       z jednej płaszczyzny zajmuje tylko swoje warstwy i może wykonywać się razem z innymi
+       obrotami swojej grupy, a ciąg z kilku płaszczyzn wyklucza wszystkie inne obroty.
+       Funkcje beforeRotation i afterRotation są wywoływane dla każdego obrotu ciągu. */
+    public void rotate(CompiledSequence sequence) throws InterruptedException {
+        if (sequence.size() != size) {
+            throw new IllegalArgumentException("Unexpected size: " + sequence.size());
+        }
+        if (sequence.length() == 0) {
+            return;
+        }
+        preProtocol(sequence.groupId());
+        long logged;
+        try {
+            logged = rotateSequenceInWorkingGroup(sequence);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw e;
+        } finally {
+            postProtocol();
+        }
+        awaitLogged(logged);
+    }
+
+    /* Odpowiednik rotateInWorkingGroup() dla skompilowanego ciągu. Warstwy są zajmowane
+       w kolejności rosnącej, więc dwa ciągi nie mogą się zakleszczyć. */
+    private long rotateSequenceInWorkingGroup(CompiledSequence sequence) throws InterruptedException {
+        int[] layerIds = sequence.layerIds();
+        int acquired = 0;
+        try {
+            for (; acquired < layerIds.length; acquired++) {
+                acquireLayer(layerIds[acquired]);
+            }
+        } catch (InterruptedException e) {
+            for (int i = 0; i < acquired; i++) {
+                layers.release(layerIds[i]);
+            }
+            throw e;
+        }
+        try {
+            for (int i = 0; i < sequence.length(); i++) {
+                beforeRotation.accept(sequence.side(i), sequence.layer(i));
+            }
+            long logged = 0;
+            if (moveLog != null) {
+                for (int i = 0; i < sequence.length(); i++) {
+                    logged = moveLog.append(sequence.side(i), sequence.layer(i));
                 }
-            } else {
-                /* Nikt nie pracuje - możemy rozpocząć pracę. */
-                numberOfLetInProcesses++;
-                workingGroup = groupId;
-                numberOfRunningProcesses++;
-                /* Oddajemy mutexa. */
-                mutex.release();
+            }
+            stickers.beforeModification();
+            startedModifications.addAndGet(sequence.length());
+            performASequence(sequence);
+            /* Jedno addAndGet rezerwuje dla obrotów ciągu kolejne wersje. */
+            long version = finishedModifications.addAndGet(sequence.length()) - sequence.length();
+            for (int i = 0; i < sequence.length(); i++) {
+                changeLog.record(++version, sequence.side(i) * size + sequence.layer(i));
+                rotationPublisher.publish(version, sequence.side(i), sequence.layer(i));
+            }
+            for (int i = 0; i < sequence.length(); i++) {
+                afterRotation.accept(sequence.side(i), sequence.layer(i));
+            }
+            return logged;
+        } finally {
+            for (int layerId : layerIds) {
+                layers.release(layerId);
             }
         }
     }
 
-    private void postProtocol() {
-        /* Wieszamy się na mutexie. */
-        mutex.acquireUninterruptibly();
-        numberOfRunningProcesses--;
-        if (numberOfRunningProcesses == 0) {
-            /* Wszyscy skończyli pracę. */
-            numberOfLetInProcesses = 0;
-            if (numberOfWaitingGroups > 0) {
-                /* Jeśli jakaś grupa czeka, budzimy jednego z reprezentantów,
-                   przekazując mu mutex. */
-                representatives.release();
-            } else {
-                /* Nie ma czekających grup. */
-                workingGroup = -1;
-                /* Oddajemy mutexa. */
-                mutex.release();
+    /* Właściwa funkcja wykonująca skompilowany ciąg - najpierw odczytuje kolory wszystkich
+       przesuwanych kwadratów, potem zapisuje je na nowe miejsca. */
+    private void performASequence(CompiledSequence sequence) {
+        CompiledSequence.Squares targets = sequence.targets();
+        CompiledSequence.Squares sources = sequence.sources();
+        byte[] colors = new byte[targets.length()];
+        for (int k = 0; k < colors.length; k++) {
+            colors[k] = (byte) stickers.get(sources.sides[k], sources.rows[k], sources.columns[k]);
+        }
+        int[] changes = misplaced != null ? new int[SIDES] : null;
+        for (int k = 0; k < colors.length; k++) {
+            int side = targets.sides[k];
+            int index = stickers.index(side, targets.rows[k], targets.columns[k]);
+            if (changes != null) {
+                changes[side] += (colors[k] != side ? 1 : 0) - (stickers.get(index) != side ? 1 : 0);
+            }
+            stickers.store(index, colors[k]);
+        }
+        if (changes != null) {
+            for (int side = 0; side < SIDES; side++) {
+                addMisplaced(side, changes[side]);
             }
+        }
+    }
+
+    /* Asynchroniczny obrót - wywołujący wątek nigdy nie czeka na kolej swojej grupy. Operacja
+       czeka w kolejce protokołu jak zwykły proces, a po wpuszczeniu wykonuje się na wykonawcy
+       z ustawień kostki. Wątek wykonawcy może jeszcze poczekać na zajętą warstwę, ale najwyżej
+       tyle, ile trwają obroty tej warstwy zlecone wcześniej w tej samej iteracji. */
+    public CompletableFuture<Void> rotateAsync(int side, int layer) {
+        int groupId = getGroupId(side);
+        CompletableFuture<Long> logged = new CompletableFuture<>();
+        protocol.enterAsync(groupId, () -> executeAdmitted(logged,
+                                                           () -> rotateInWorkingGroup(side, layer)));
+        return logged.thenAccept(this::awaitLogged);
+    }
+
+    /* Zleca wykonawcy operację procesu wpuszczonego już przez protokół. Po operacji wykonuje
+       protokół końcowy i uzupełnia wynik - także wtedy, gdy operacja się nie powiodła. */
+    private <T> void executeAdmitted(CompletableFuture<T> result, Callable<T> operation) {
+        try {
+            executor.execute(() -> {
+                T value;
+                try {
+                    value = operation.call();
+                } catch (Throwable e) {
+                    postProtocol();
+                    result.completeExceptionally(e);
+                    return;
+                }
+                postProtocol();
+                result.complete(value);
+            });
+        } catch (RejectedExecutionException e) {
+            postProtocol();
+            result.completeExceptionally(e);
+        }
+    }
+
+    /* Właściwa funkcja zapisująca obecny stan kostki w wersji version do dst - tablicy byte[]
+       lub char[] (od początku), ByteBuffer (od jego pozycji, bez jej zmiany) albo jednoelementowej
+       tablicy String[] dla show(), która dostaje zapamiętany napis, jeśli ten jest w tej samej
+       wersji. Bufor jest przekazywany jako Object, żeby wspólna ścieżka odczytu nie alokowała
+       niczego przy wywołaniu. */
+    private void performAShow(Object dst, long version) {
+        if (dst instanceof byte[]) {
+            stickers.showInto((byte[]) dst, 0);
+        } else if (dst instanceof char[]) {
+            stickers.showInto((char[]) dst, 0);
+        } else if (dst instanceof ByteBuffer) {
+            ByteBuffer buffer = (ByteBuffer) dst;
+            stickers.showInto(buffer, buffer.position());
+        } else if (dst instanceof String[]) {
+            ShownState shown = lastShown;
+            ((String[]) dst)[0] = shown != null && shown.version == version
+                                  ? shown.cubeState : stickers.show();
         } else {
-            /* Jakieś procesy nadal pracują - oddajemy mutexa. */
-            mutex.release();
+            throw new IllegalStateException("Unexpected value: " + dst);
         }
     }
 
-    /* Właściwa funkcja dokonująca obrotu na kostce. */
-    private void performARotation(int side, int layer) {
+    /* Zapamiętuje napis odczytany w spójnej wersji version, o ile jest nowszy od zapamiętanego. */
+    private void rememberShown(Object dst, long version) {
+        if (dst instanceof String[]) {
+            ShownState shown = lastShown;
+            if (shown == null || shown.version < version) {
+                lastShown = new ShownState(version, ((String[]) dst)[0]);
+            }
+        }
+    }
+
+    /* Optymistyczny odczyt stanu kostki - kopiujemy kwadraty bez wchodzenia do protokołu
+       i sprawdzamy, czy w międzyczasie nie rozpoczęła się ani nie trwała żadna modyfikacja.
+       Zwraca false, jeśli w żadnej z prób nie udało się uzyskać spójnej kopii. */
+    private boolean tryShowOptimistically(Object dst) {
+        for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+            long version = finishedModifications.get();
+            if (startedModifications.get() == version) {
+                performAShow(dst, version);
+                /* Odczyty kwadratów nie mogą zostać przesunięte za ponowne sprawdzenie licznika. */
+                VarHandle.acquireFence();
+                if (startedModifications.get() == version) {
+                    rememberShown(dst, version);
+                    return true;
+                }
+            }
+            Thread.onSpinWait();
+        }
+        return false;
+    }
+
+    /* Odczyt wykonywany przez proces, który przeszedł protokół wstępny dla pokazywania. */
+    private void showInWorkingGroup(Object dst) {
+        long version = finishedModifications.get();
+        performAShow(dst, version);
+        /* Obroty nie pracują razem z pokazywaniem, ale reset() nie przechodzi przez protokół. */
+        if (startedModifications.get() == version) {
+            rememberShown(dst, version);
+        }
+    }
+
+    /* Wspólna ścieżka show() i showInto() - zapisuje stan kostki do dst pod protokołem
+       pokazywania (lub optymistycznie, jeśli jest włączone). Funkcje beforeShowing
+       i afterShowing są wywoływane tylko pod protokołem, więc nigdy nie nakładają się
+       na funkcje obrotów - udany odczyt optymistyczny ich nie wywołuje. */
+    private void showStickers(Object dst) throws InterruptedException {
+        if (optimisticShowing && tryShowOptimistically(dst)) {
+            return;
+        }
+        /* Obroty ciągle trwają (albo pokazywanie nie jest optymistyczne) - czekamy na swoją
+           kolej w protokole. */
+        preProtocol(SHOW);
+        try {
+            beforeShowing.run();
+            showInWorkingGroup(dst);
+            afterShowing.run();
+        } finally {
+            postProtocol();
+        }
+    }
+
+    /* Sprawdza, czy bufor o podanej pojemności pomieści stan kostki. */
+    private void checkCapacity(int capacity) {
+        if (capacity < stickers.length()) {
+            throw new IllegalArgumentException("Buffer too small: " + capacity + " < "
+                                               + stickers.length());
+        }
+    }
+
+    /* Jeśli od poprzedniego pokazania kostka się nie zmieniła, zwraca zapamiętany napis
+       bez przeglądania kwadratów. */
+    public String show() throws InterruptedException {
+        String[] cubeState = new String[1];
+        showStickers(cubeState);
+        return cubeState[0];
+    }
+
+    /* Odpowiedniki show() zapisujące ten sam ciąg cyfr do bufora podanego przez wywołującego,
+       bez alokacji - bufor można używać wielokrotnie. Tablice są wypełniane od początku
+       i muszą mieć co najmniej 6 * size * size elementów. */
+    public void showInto(byte[] dst) throws InterruptedException {
+        checkCapacity(dst.length);
+        showStickers(dst);
+    }
+
+    public void showInto(char[] dst) throws InterruptedException {
+        checkCapacity(dst.length);
+        showStickers(dst);
+    }
+
+    /* Zapis od bieżącej pozycji bufora, która po udanym zapisie przesuwa się za ostatnią cyfrę.
+       Bufor tylko do odczytu jest odrzucany, zanim pokazanie wejdzie do protokołu. */
+    public void showInto(ByteBuffer dst) throws InterruptedException {
+        if (dst.isReadOnly()) {
+            throw new ReadOnlyBufferException();
+        }
+        checkCapacity(dst.remaining());
+        showStickers(dst);
+        dst.position(dst.position() + stickers.length());
+    }
+
+    /* Pokazanie, które rezygnuje, jeśli grupa pokazywania nie zostanie wpuszczona w czasie
+       timeout - wtedy zwraca null. Funkcje beforeShowing i afterShowing są wywoływane jak
+       w show() - tylko dla pokazania pod protokołem, więc nie po przekroczeniu czasu ani po
+       udanym odczycie optymistycznym. */
+    public String tryShow(Duration timeout) throws InterruptedException {
+        String[] cubeState = new String[1];
+        if (optimisticShowing && tryShowOptimistically(cubeState)) {
+            return cubeState[0];
+        }
+        if (!protocol.tryEnter(SHOW, timeout.toNanos())) {
+            return null;
+        }
+        try {
+            beforeShowing.run();
+            showInWorkingGroup(cubeState);
+            afterShowing.run();
+        } finally {
+            postProtocol();
+        }
+        return cubeState[0];
+    }
+
+    /* Asynchroniczne pokazanie kostki - odpowiednik rotateAsync() dla show(). Zawsze przechodzi
+       przez protokół, także w trybie optymistycznego pokazywania. */
+    public CompletableFuture<String> showAsync() {
+        CompletableFuture<String> result = new CompletableFuture<>();
+        protocol.enterAsync(SHOW, () -> executeAdmitted(result, () -> {
+            beforeShowing.run();
+            String[] cubeState = new String[1];
+            showInWorkingGroup(cubeState);
+            afterShowing.run();
+            return cubeState[0];
+        }));
+        return result;
+    }
+
+    /* Zbiór indeksów kwadratów zmienionych przez ciąg modyfikacji. Przerywa zbieranie
+       (full() zwraca true), gdy indeksów z powtórzeniami jest więcej niż kwadratów - wtedy
+       taniej jest wysłać pełny stan. */
+    private static final class TouchedStickers {
+        private final Stickers stickers;
+        private int[] indices = new int[16];
+        private int count = 0;
+
+        private TouchedStickers(Stickers stickers) {
+            this.stickers = stickers;
+        }
+
+        private boolean full() {
+            return count > stickers.length();
+        }
+
+        private void add(int index) {
+            if (count == indices.length) {
+                indices = Arrays.copyOf(indices, 2 * count);
+            }
+            indices[count++] = index;
+        }
+
+        private void addRow(int side, int row) {
+            for (int column = 0; column < stickers.size() && !full(); column++) {
+                add(stickers.shownIndex(side, row, column));
+            }
+        }
+
+        private void addColumn(int side, int column) {
+            for (int row = 0; row < stickers.size() && !full(); row++) {
+                add(stickers.shownIndex(side, row, column));
+            }
+        }
+
+        private void addSide(int side) {
+            for (int row = 0; row < stickers.size() && !full(); row++) {
+                addRow(side, row);
+            }
+        }
+
+        /* Posortowane indeksy bez powtórzeń. */
+        private int[] toSortedArray() {
+            int[] sorted = Arrays.copyOf(indices, count);
+            Arrays.sort(sorted);
+            int distinct = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                if (i == 0 || sorted[i] != sorted[i - 1]) {
+                    sorted[distinct++] = sorted[i];
+                }
+            }
+            return Arrays.copyOf(sorted, distinct);
+        }
+    }
+
+    /* Dodaje do touched kwadraty zmieniane przez obrót (side, layer) - te same, które
+       przestawia performARotation(). */
+    private void addTouchedStickers(TouchedStickers touched, int side, int layer) {
         if (isTheFirstLayer(layer)) {
-            rotateSideClockwise(side);
+            touched.addSide(side);
         }
         if (isTheLastLayer(layer)) {
-            rotateSideCounterclockwise(oppositeSide[side]);
+            touched.addSide(oppositeSide[side]);
         }
+        int layerId = getLayerId(side, layer);
+        int oppositeLayerId = getOppositeLayer(layerId);
         switch (side) {
             case UP:
             case DOWN:
-                rotateRows(side, layer);
+                for (int neighbour : getAdjacentSides(UP)) {
+                    touched.addRow(neighbour, layerId);
+                }
                 break;
             case LEFT:
             case RIGHT:
-                rotateColumns(side, layer);
+                touched.addColumn(UP, layerId);
+                touched.addColumn(FRONT, layerId);
+                touched.addColumn(DOWN, layerId);
+                touched.addColumn(BACK, oppositeLayerId);
                 break;
             case FRONT:
             case BACK:
-                rotateRowsAndColumns(side, layer);
+                touched.addRow(UP, oppositeLayerId);
+                touched.addColumn(LEFT, oppositeLayerId);
+                touched.addRow(DOWN, layerId);
+                touched.addColumn(RIGHT, layerId);
                 break;
         }
     }
 
-    public void rotate(int side, int layer) throws InterruptedException {
-        int layerId = getLayerId(side, layer);
-        preProtocol(getGroupId(side));
-        /* Próbujemy zawiesić się na semaforze dla wartstwa - jeśli wątek
-           zostanie przerwany wykonujemy protokół końcowy. */
+    /* Właściwa funkcja zwracająca zmiany od wersji since. Wywoływana, gdy nie trwa żadna
+       modyfikacja. Pełny stan jest zwracany, gdy since nie jest wersją z historii, gdy od
+       since był reset lub gdy historia została już nadpisana. */
+    private CubeChanges performAShowChangesSince(long since) {
+        long version = finishedModifications.get();
+        if (changeLog.covers(since, version)) {
+            TouchedStickers touched = new TouchedStickers(stickers);
+            boolean reset = false;
+            for (long v = since + 1; v <= version && !reset && !touched.full(); v++) {
+                int move = changeLog.get(v);
+                if (move == ChangeLog.RESET) {
+                    reset = true;
+                } else {
+                    addTouchedStickers(touched, move / size, move % size);
+                }
+            }
+            if (!reset && !touched.full()) {
+                int[] indices = touched.toSortedArray();
+                byte[] colors = new byte[indices.length];
+                for (int i = 0; i < indices.length; i++) {
+                    colors[i] = (byte) stickers.getShown(indices[i]);
+                }
+                return new CubeChanges(version, null, indices, colors);
+            }
+        }
+        return new CubeChanges(version, stickers.show(), null, null);
+    }
+
+    /* Zwraca zmiany stanu kostki od wersji since (zwróconej przez poprzednie wywołanie,
+       0 to kostka ułożona przy utworzeniu) - tylko kwadraty zmienione przez obroty wykonane
+       od tamtej pory, z ich obecnymi kolorami, albo pełny stan, jeśli historia obrotów nie
+       sięga since. Ujemne since oznacza prośbę o pełny stan. Przechodzi przez protokół
+       jak show(). Wersja późniejsza od obecnej nigdy nie była zwrócona, więc jest odrzucana
+       jeszcze przed wejściem do protokołu (wersje tylko rosną). */
+    public CubeChanges showChangesSince(long since) throws InterruptedException {
+        if (since > finishedModifications.get()) {
+            throw new IllegalArgumentException("Unexpected value: " + since);
+        }
+        preProtocol(SHOW);
         try {
-            layers[layerId].acquire();
-        } catch (InterruptedException e) {
-            Thread.currentThread().interrupt();
+            beforeShowing.run();
+            CubeChanges changes = performAShowChangesSince(since);
+            afterShowing.run();
+            return changes;
+        } finally {
             postProtocol();
-            throw e;
         }
-        beforeRotation.accept(side, layer);
-        performARotation(side, layer);
-        afterRotation.accept(side, layer);
-        layers[layerId].release();
-        postProtocol();
     }
 
-    /* Właściwa funkcja zwracająca obecny stan kostki. */
-    private String performAShow() {
-        StringBuilder cubeState = new StringBuilder();
-        for (int side = 0; side < SIDES; side++) {
-            for (int row = 0; row < size; row++) {
-                for (int column = 0; column < size; column++) {
-                    cubeState.append(cube[side][row][column]);
-                }
-            }
+    /* Strumień zdarzeń (wersja, ściana, warstwa) dla każdego zakończonego obrotu i resetu -
+       obserwator może śledzić stan kostki za O(1) na obrót zamiast pobierać pełny stan.
+       Każdy subskrybent ma własny bufor na bufferCapacity zdarzeń, a gdy nie nadąża z ich
+       odbieraniem, zdarzenia są odrzucane zgodnie z overflow (obroty nigdy na niego nie
+       czekają). Zdarzenia są przekazywane na wykonawcy kostki (zob. CubeOptions.executor()),
+       a close() kończy strumień. */
+    public Flow.Publisher<RotationEvent> rotations(int bufferCapacity, RotationEvent.Overflow overflow) {
+        if (bufferCapacity <= 0) {
+            throw new IllegalArgumentException("Unexpected capacity: " + bufferCapacity);
+        }
+        if (overflow == null) {
+            throw new IllegalArgumentException("Overflow policy must not be null");
         }
-        return cubeState.toString();
+        return rotationPublisher.publisher(bufferCapacity, overflow);
     }
 
-    public String show() throws InterruptedException {
-        // Id grupy wykonującej pokazywanie kostki.
-        int SHOW = 3;
+    /* Zwraca migawkę statystyk protokołu wejścia. */
+    public CubeStats getStats() {
+        return protocol.getStats(layerWaits.snapshot(),
+                                 listenerDispatcher != null ? listenerDispatcher.dropped() : 0);
+    }
+
+    /* Zapisuje trwale obecny stan kostki trzymanej w pliku (zob. CubeOptions.persistentState) -
+       po awarii kostka zostanie otwarta w stanie z ostatniego takiego punktu. Przechodzi przez
+       protokół jako pokazanie, więc żaden obrót nie trwa w trakcie zapisu. Dla kostki
+       trzymanej w pamięci nic nie robi. */
+    public void checkpoint() throws InterruptedException {
         preProtocol(SHOW);
-        beforeShowing.run();
-        String cubeState = performAShow();
-        afterShowing.run();
-        postProtocol();
-        return cubeState;
+        try {
+            stickers.checkpoint(finishedModifications.get());
+        } finally {
+            postProtocol();
+        }
+    }
+
+    /* Kończy pracę z kostką - zapisuje punkt bezpieczny, żeby kolejne otwarcie pliku
+       nie wymagało odtwarzania stanu. Przerwanie wątku nie przerywa zamykania - czekamy
+       dalej, a po zamknięciu przywracamy flagę przerwania. */
+    @Override
+    public void close() {
+        boolean interrupted = false;
+        while (true) {
+            try {
+                checkpoint();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (moveLog != null) {
+            moveLog.close();
+        }
+        if (listenerDispatcher != null) {
+            listenerDispatcher.close();
+        }
+        rotationPublisher.close();
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /* Wykonuje obroty zapisane w dzienniku log (zob. CubeOptions.moveLog) z pominięciem
+       protokołu, warstw i funkcji wywoływanych przed i po obrocie - tak szybko, jak pozwala
+       jeden wątek. Przeznaczona do odbudowy stanu przed udostępnieniem kostki innym wątkom -
+       nie może działać współbieżnie z innymi operacjami. Obroty nie są dopisywane do
+       dziennika tej kostki. Niepełny ostatni rekord (po awarii w trakcie zapisu) jest pomijany. */
+    public void replay(Path log) {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ)) {
+            MoveLog.checkHeader(channel, size);
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+            long position = MoveLog.HEADER;
+            int read;
+            while ((read = channel.read(buffer, position)) > 0) {
+                position += read;
+                buffer.flip();
+                int moves = buffer.remaining() / MoveLog.RECORD;
+                /* Sprawdzamy całą porcję przed zmianą liczników wersji - błędny rekord nie może
+                   zostawić rozpoczętej, a niezakończonej modyfikacji. */
+                for (int i = 0; i < moves; i++) {
+                    int record = buffer.getInt(i * MoveLog.RECORD);
+                    if (MoveLog.side(record) >= SIDES || MoveLog.layer(record) >= size) {
+                        throw new IllegalArgumentException("Unexpected value: " + record);
+                    }
+                }
+                stickers.beforeModification();
+                startedModifications.addAndGet(moves);
+                long version = finishedModifications.get();
+                for (int i = 0; i < moves; i++) {
+                    int record = buffer.getInt();
+                    int side = MoveLog.side(record);
+                    int layer = MoveLog.layer(record);
+                    performARotation(side, layer);
+                    changeLog.record(++version, side * size + layer);
+                    rotationPublisher.publish(version, side, layer);
+                }
+                finishedModifications.addAndGet(moves);
+                buffer.compact();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
     }
 
     /* Funkcja resetująca kostkę do wersji ułożonej. */
     public void reset() {
-        for (int side = 0; side < SIDES; side++) {
-            this.cube[side] = new int[size][size];
-            for (int row = 0; row < size; row++) {
-                Arrays.fill(this.cube[side][row], side);
+        stickers.beforeModification();
+        startedModifications.incrementAndGet();
+        stickers.reset();
+        if (misplaced != null) {
+            for (AtomicInteger counter : misplaced) {
+                counter.set(0);
+            }
+        }
+        long version = finishedModifications.incrementAndGet();
+        changeLog.record(version, ChangeLog.RESET);
+        rotationPublisher.publish(version, -1, -1);
+    }
+
+    /* Nanosi na kostkę zmiany changes pobrane z innej kostki przez showChangesSince(v), gdzie
+       v to obecna wersja tej kostki (albo pełny stan), i przyjmuje ich wersję - dla CubeReplica,
+       która jest jedynym procesem modyfikującym swoją kostkę. Przechodzi przez protokół jako
+       obrót, ale nie zajmuje warstw. */
+    void overwrite(CubeChanges changes) throws InterruptedException {
+        preProtocol(getGroupId(UP));
+        try {
+            long previous = finishedModifications.get();
+            long version = changes.version();
+            if (version <= previous) {
+                return;
             }
+            stickers.beforeModification();
+            /* Liczniki różnią się do końca zapisu, więc optymistyczny odczyt go odrzuci. */
+            startedModifications.set(version);
+            if (changes.isFullState()) {
+                String state = changes.state();
+                for (int i = 0; i < state.length(); i++) {
+                    stickers.setShown(i, (byte) (state.charAt(i) - '0'));
+                }
+            } else {
+                for (int i = 0; i < changes.count(); i++) {
+                    stickers.setShown(changes.index(i), (byte) changes.color(i));
+                }
+            }
+            if (misplaced != null) {
+                for (int side = 0; side < SIDES; side++) {
+                    misplaced[side].set(stickers.countMisplaced(side));
+                }
+            }
+            /* Pominięte wersje są w historii resetami - showChangesSince() zwróci dla nich
+               pełny stan. */
+            for (long v = Math.max(previous + 1, version - changeLog.capacity() + 1); v <= version; v++) {
+                changeLog.record(v, ChangeLog.RESET);
+            }
+            finishedModifications.set(version);
+        } finally {
+            postProtocol();
         }
     }
 
+    /* Wersja obecnego stanu kostki - ta sama co w showChangesSince(). */
+    long version() {
+        return finishedModifications.get();
+    }
+
+    int size() {
+        return size;
+    }
+
     public int getRandomSide() {
         Random random = new Random();
         return random.nextInt(SIDES);
@@ -476,15 +1387,52 @@ public class Cube {
         return random.nextInt(size);
     }
 
-    /* Sprawdza, czy kostka jest ułożona. */
-    public boolean isSolved() {
-        for (int side = 0; side < SIDES; side++) {
-            for (int row = 0; row < size; row++) {
-                for (int column = 0; column < size; column++) {
-                    if (cube[side][row][column] != side) {
-                        return false;
+    /* Sprawdza warunek check na spójnym stanie kostki - pod protokołem pokazywania (bez
+       beforeShowing i afterShowing) lub optymistycznie, jeśli pokazywanie jest optymistyczne. */
+    private boolean checkState(BooleanSupplier check) throws InterruptedException {
+        if (optimisticShowing) {
+            for (int attempt = 0; attempt < OPTIMISTIC_ATTEMPTS; attempt++) {
+                long version = finishedModifications.get();
+                if (startedModifications.get() == version) {
+                    boolean result = check.getAsBoolean();
+                    VarHandle.acquireFence();
+                    if (startedModifications.get() == version) {
+                        return result;
                     }
                 }
+                Thread.onSpinWait();
+            }
+        }
+        preProtocol(SHOW);
+        try {
+            return check.getAsBoolean();
+        } finally {
+            postProtocol();
+        }
+    }
+
+    /* Sprawdza, czy kostka jest ułożona. Bez śledzenia liczb źle położonych kwadratów
+       sprawdza wszystkie kwadraty bez protokołu, jak dotąd. Przy CubeOptions.solvedTracking()
+       sprawdza liczniki w czasie stałym na spójnym stanie, więc może czekać na protokół -
+       wtedy nie wolno jej wywoływać z funkcji obrotów ani pokazywania. Jeśli wątek zostanie
+       przerwany w trakcie czekania na spójny stan, przywracamy flagę przerwania i sprawdzamy
+       wszystkie kwadraty bez protokołu. */
+    public boolean isSolved() {
+        if (misplaced == null) {
+            return stickers.isSolved();
+        }
+        try {
+            return checkState(this::countersSolved);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return stickers.isSolved();
+        }
+    }
+
+    private boolean countersSolved() {
+        for (AtomicInteger counter : misplaced) {
+            if (counter.get() != 0) {
+                return false;
             }
         }
         return true;
@@ -492,15 +1440,7 @@ public class Cube {
 
     /* Sprawdza, czy kostka posiada (size * size) kwadratów każdego koloru. */
     public boolean hasCorrectNumberOfEachColor() {
-        int[] counters = new int[SIDES];
-        Arrays.fill(counters, 0);
-        for (int side = 0; side < SIDES; side++) {
-            for (int row = 0; row < size; row++) {
-                for (int column = 0; column < size; column++) {
-                    counters[cube[side][row][column]]++;
-                }
-            }
-        }
+        int[] counters = stickers.countColors();
         for (int side = 0; side < SIDES; side++) {
             if (counters[side] != size * size) {
                 return false;
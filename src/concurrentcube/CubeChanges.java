@@ -0,0 +1,67 @@
+package concurrentcube;
+
+import java.util.Arrays;
+
+/* Wynik showChangesSince() - zmiany stanu kostki od podanej wersji do version().
+   Jest to albo lista kwadratów (indeksów w napisie zwracanym przez show()) z ich obecnymi
+   kolorami, albo - gdy zmian nie da się odtworzyć z historii lub jest ich więcej niż
+   kwadratów - pełny stan w postaci takiej jak z show(). */
+public final class CubeChanges {
+    private final long version;
+    private final String state;
+    private final int[] indices;
+    private final byte[] colors;
+
+    CubeChanges(long version, String state, int[] indices, byte[] colors) {
+        this.version = version;
+        this.state = state;
+        this.indices = indices;
+        this.colors = colors;
+    }
+
+    /* Wersja stanu, do której prowadzą zmiany - do przekazania w kolejnym wywołaniu. */
+    public long version() {
+        return version;
+    }
+
+    public boolean isFullState() {
+        return state != null;
+    }
+
+    /* Pełny stan kostki lub null, jeśli wynik zawiera tylko zmienione kwadraty. */
+    public String state() {
+        return state;
+    }
+
+    /* Liczba zmienionych kwadratów (0 dla pełnego stanu). */
+    public int count() {
+        return state == null ? indices.length : 0;
+    }
+
+    /* Indeks i-tego zmienionego kwadratu w napisie zwracanym przez show(). Indeksy są rosnące. */
+    public int index(int i) {
+        return indices[i];
+    }
+
+    /* Obecny kolor i-tego zmienionego kwadratu. */
+    public int color(int i) {
+        return colors[i];
+    }
+
+    /* Nanosi zmiany na stan w postaci cyfr (jak z show()) o wersji, od której o nie pytano. */
+    public void applyTo(char[] cubeState) {
+        if (state != null) {
+            state.getChars(0, state.length(), cubeState, 0);
+            return;
+        }
+        for (int i = 0; i < indices.length; i++) {
+            cubeState[indices[i]] = (char) ('0' + colors[i]);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "CubeChanges{version=" + version
+               + (state != null ? ", state=" + state : ", indices=" + Arrays.toString(indices)) + "}";
+    }
+}
@@ -0,0 +1,196 @@
+package concurrentcube;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+
+/* Dodatkowe ustawienia kostki przekazywane do konstruktora. Domyślne wartości odpowiadają
+   zachowaniu kostki tworzonej konstruktorem bez ustawień. */
+public class CubeOptions {
+    private boolean optimisticShowing = false;
+    private Duration maxGroupWaitingTime = null;
+    private Executor executor = ForkJoinPool.commonPool();
+    private boolean lockFreeAdmission = false;
+    private int changeLogCapacity = 1024;
+    private int parallelRotationThreshold = 0;
+    private Path stateFile = null;
+    private Path moveLogFile = null;
+    private boolean precomputedRotations = false;
+    private boolean solvedTracking = false;
+    private SchedulingPolicy schedulingPolicy = SchedulingPolicy.fifo();
+    private int listenerBufferCapacity = 0;
+
+    /* Włącza optymistyczne pokazywanie kostki - show() kopiuje stan bez wchodzenia do
+       protokołu i powtarza odczyt tylko wtedy, gdy w międzyczasie wykonał się obrót. Udany
+       odczyt optymistyczny nie wywołuje beforeShowing ani afterShowing (trwałyby równolegle
+       z obrotami) - są one wywoływane tylko wtedy, gdy show() po nieudanych próbach
+       przechodzi przez protokół, więc nadal nigdy nie nakładają się na funkcje obrotów. */
+    public CubeOptions optimisticShowing(boolean enabled) {
+        this.optimisticShowing = enabled;
+        return this;
+    }
+
+    /* Włącza samodostosowujący się limit procesów wpuszczanych z pracującej grupy, gdy czekają
+       inne grupy. Limit jest zmieniany na podstawie czasów oczekiwania reprezentantów, liczby
+       czekających grup i czasu trwania iteracji tak, aby czas oczekiwania innych grup nie
+       przekraczał podanej wartości. */
+    public CubeOptions adaptiveGroupLimit(Duration maxGroupWaitingTime) {
+        if (maxGroupWaitingTime.isNegative() || maxGroupWaitingTime.isZero()) {
+            throw new IllegalArgumentException("Unexpected waiting time: " + maxGroupWaitingTime);
+        }
+        this.maxGroupWaitingTime = maxGroupWaitingTime;
+        return this;
+    }
+
+    /* Wykonawca, na którym rotateAsync() i showAsync() wykonują operacje po wpuszczeniu
+       przez protokół. Domyślnie ForkJoinPool.commonPool(). */
+    public CubeOptions executor(Executor executor) {
+        if (executor == null) {
+            throw new IllegalArgumentException("Executor must not be null");
+        }
+        this.executor = executor;
+        return this;
+    }
+
+    /* Włącza wariant protokołu, w którym stan protokołu jest trzymany w jednym słowie
+       zmienianym przez CAS - gdy pracuje jedna grupa i nikt nie czeka, wejście i wyjście
+       nie zajmują mutexa. */
+    public CubeOptions lockFreeAdmission(boolean enabled) {
+        this.lockFreeAdmission = enabled;
+        return this;
+    }
+
+    /* Liczba ostatnich obrotów pamiętanych na potrzeby showChangesSince() - starsze zmiany
+       są zwracane jako pełny stan. Domyślnie 1024, 0 wyłącza historię. */
+    public CubeOptions changeLogCapacity(int capacity) {
+        if (capacity < 0) {
+            throw new IllegalArgumentException("Unexpected capacity: " + capacity);
+        }
+        this.changeLogCapacity = capacity;
+        return this;
+    }
+
+    /* Dla kostek rozmiaru co najmniej size pojedynczy obrót jest wykonywany równolegle
+       w ForkJoinPool.commonPool() - pierścień obracanej warstwy jest dzielony na części.
+       Opłaca się to tylko dla bardzo dużych kostek. Domyślnie 0 - obroty zawsze w jednym wątku. */
+    public CubeOptions parallelRotations(int size) {
+        if (size < 0) {
+            throw new IllegalArgumentException("Unexpected size: " + size);
+        }
+        this.parallelRotationThreshold = size;
+        return this;
+    }
+
+    /* Trzyma stan kostki w zmapowanym do pamięci pliku file zamiast na stercie. Jeśli plik
+       istnieje, kostka jest z niego otwierana (rozmiar musi się zgadzać), a jeśli poprzedni
+       proces padł po ostatnim checkpoint(), stan jest cofany do tego punktu. */
+    public CubeOptions persistentState(Path file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File must not be null");
+        }
+        this.stateFile = file;
+        return this;
+    }
+
+    /* Dopisuje każdy obrót do dziennika w pliku file (4 bajty na obrót) - rotate() wraca
+       dopiero wtedy, gdy rekord obrotu jest na dysku, przy czym obroty kończące się w tym
+       samym czasie dzielą jeden fsync. Stan można odbudować z dziennika przez Cube.replay(). */
+    public CubeOptions moveLog(Path file) {
+        if (file == null) {
+            throw new IllegalArgumentException("File must not be null");
+        }
+        this.moveLogFile = file;
+        return this;
+    }
+
+    /* Wylicza przy tworzeniu kostki opisy pasów kwadratów przesuwanych przez każdy obrót
+       (20 liczb na warstwę), dzięki czemu obrót to jedna pętla bez rozgałęzień. */
+    public CubeOptions precomputedRotations(boolean enabled) {
+        this.precomputedRotations = enabled;
+        return this;
+    }
+
+    /* Kostka liczy na bieżąco źle położone kwadraty każdej ściany (poprawiając liczniki
+       przy każdym obrocie o zmiany na O(size) przesuwanych kwadratach), więc isSolved()
+       działa w czasie stałym. */
+    public CubeOptions solvedTracking(boolean enabled) {
+        this.solvedTracking = enabled;
+        return this;
+    }
+
+    /* Polityka wyboru grup w protokole wejścia (zob. SchedulingPolicy). Domyślnie
+       SchedulingPolicy.fifo(). */
+    public CubeOptions schedulingPolicy(SchedulingPolicy policy) {
+        if (policy == null) {
+            throw new IllegalArgumentException("Policy must not be null");
+        }
+        this.schedulingPolicy = policy;
+        return this;
+    }
+
+    /* Funkcje beforeRotation i afterRotation są wywoływane w osobnym wątku, w kolejności
+       obrotów, ale już po wyjściu z sekcji krytycznej - obroty tylko dopisują zdarzenia do
+       bufora na capacity zdarzeń i nigdy na nie nie czekają: gdy bufor jest pełny, zdarzenie
+       jest pomijane (zob. CubeStats.droppedListenerEvents()). Zdarzenia dopisane do bufora są
+       obsłużone po Cube.close(). Domyślnie 0 - funkcje są wywoływane w trakcie obrotu. */
+    public CubeOptions asyncRotationListeners(int capacity) {
+        if (capacity < 0 || capacity > 1 << 30) {
+            throw new IllegalArgumentException("Unexpected capacity: " + capacity);
+        }
+        this.listenerBufferCapacity = capacity;
+        return this;
+    }
+
+    boolean isOptimisticShowing() {
+        return optimisticShowing;
+    }
+
+    /* Zwraca null, jeśli limit ma być stały. */
+    Duration getMaxGroupWaitingTime() {
+        return maxGroupWaitingTime;
+    }
+
+    Executor getExecutor() {
+        return executor;
+    }
+
+    boolean isLockFreeAdmission() {
+        return lockFreeAdmission;
+    }
+
+    int getChangeLogCapacity() {
+        return changeLogCapacity;
+    }
+
+    int getParallelRotationThreshold() {
+        return parallelRotationThreshold;
+    }
+
+    /* Zwraca null, jeśli stan ma być trzymany w pamięci. */
+    Path getStateFile() {
+        return stateFile;
+    }
+
+    /* Zwraca null, jeśli kostka nie prowadzi dziennika obrotów. */
+    Path getMoveLogFile() {
+        return moveLogFile;
+    }
+
+    boolean isPrecomputedRotations() {
+        return precomputedRotations;
+    }
+
+    boolean isSolvedTracking() {
+        return solvedTracking;
+    }
+
+    SchedulingPolicy getSchedulingPolicy() {
+        return schedulingPolicy;
+    }
+
+    /* 0, jeśli funkcje obrotów są wywoływane bezpośrednio. */
+    int getListenerBufferCapacity() {
+        return listenerBufferCapacity;
+    }
+}
@@ -0,0 +1,195 @@
+package concurrentcube;
+
+import java.util.TreeMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Flow;
+import java.util.concurrent.TimeUnit;
+
+/* Kopia kostki do odczytu, która nadąża za kostką główną, wykonując u siebie obroty ze
+   strumienia primary.rotations() - w tle, we własnym wątku. Odczyty repliki nie przechodzą
+   przez protokół kostki głównej (konkurują tylko z wykonywaniem obrotów w replice) i widzą
+   stan, który kostka główna miała w jakiejś niedawnej wersji - showChangesSince() zwraca tę
+   wersję razem ze stanem.
+
+   Subskrybent strumienia tylko przekłada zdarzenia do kolejki wątku repliki (żąda ich nie
+   więcej, niż kolejka pomieści), więc nigdy nie wstrzymuje wykonawcy kostki głównej i nie
+   wywołuje jej metod. Wątek repliki wykonuje zdarzenia w kolejności wersji - zdarzenia, które
+   przyszły przed poprzednimi wersjami, czekają w buforze. Jeśli brakującej wersji nie ma
+   (strumień zgubił zdarzenia, bo replika nie nadążała), wątek repliki pobiera od kostki
+   głównej zmiany od swojej wersji przez showChangesSince() i nanosi je na swój stan. */
+public final class CubeReplica implements AutoCloseable {
+    /* Po takim czasie bez nowych zdarzeń brakująca wersja jest uznawana za zgubioną. */
+    private static final long GAP_TIMEOUT_MILLIS = 10;
+
+    private final Cube primary;
+    private final Cube replica;
+    private final String solvedState;
+    private final int maxPending;
+    private final BlockingQueue<RotationEvent> incoming;
+    private final Thread follower;
+    private volatile Flow.Subscription subscription;
+    private volatile boolean closed = false;
+
+    /* Pola poniżej zmienia tylko wątek repliki (przed jego uruchomieniem - konstruktor). */
+    private final TreeMap<Long, RotationEvent> pending = new TreeMap<>();
+    private long applied = -1; // Wersja stanu repliki lub -1 przed pierwszym pobraniem stanu.
+    private int consumed = 0; // Zdarzenia wyjęte z kolejki, a jeszcze nie zażądane ponownie.
+
+    /* Tworzy replikę kostki primary - strumień zdarzeń ma bufor na bufferCapacity zdarzeń,
+       po którego przepełnieniu replika pobiera stan od kostki głównej. Pierwszy stan jest
+       pobierany od razu, przez protokół pokazywania kostki głównej. */
+    public CubeReplica(Cube primary, int bufferCapacity) throws InterruptedException {
+        this.primary = primary;
+        this.replica = new Cube(primary.size(), (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                                new CubeOptions().optimisticShowing(true));
+        this.solvedState = replica.show();
+        this.maxPending = bufferCapacity;
+        this.incoming = new ArrayBlockingQueue<>(bufferCapacity);
+        this.follower = new Thread(this::follow, "cube-replica");
+        follower.setDaemon(true);
+        primary.rotations(bufferCapacity, RotationEvent.Overflow.CONFLATE).subscribe(new Follower());
+        try {
+            resync();
+        } catch (InterruptedException e) {
+            close();
+            throw e;
+        }
+        follower.start();
+    }
+
+    /* Stan repliki jak z Cube.show() - wersję tego stanu podaje showChangesSince(). */
+    public String show() throws InterruptedException {
+        return replica.show();
+    }
+
+    /* Jak Cube.showChangesSince(), z wersjami kostki głównej. */
+    public CubeChanges showChangesSince(long since) throws InterruptedException {
+        return replica.showChangesSince(since);
+    }
+
+    /* Wersja kostki głównej, której stan ma teraz replika. */
+    public long version() {
+        return replica.version();
+    }
+
+    /* Kończy śledzenie kostki głównej i czeka na wątek repliki - replika zachowuje ostatni
+       stan. */
+    @Override
+    public void close() {
+        closed = true;
+        Flow.Subscription toCancel = subscription;
+        if (toCancel != null) {
+            toCancel.cancel();
+        }
+        if (follower.isAlive()) {
+            follower.interrupt();
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    follower.join();
+                    break;
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Pętla wątku repliki. Gdy w buforze czekają zdarzenia za luką, wątek czeka na nowe
+       zdarzenia najwyżej GAP_TIMEOUT_MILLIS, a potem pobiera stan od kostki głównej. */
+    private void follow() {
+        try {
+            while (!closed) {
+                RotationEvent event = pending.isEmpty()
+                                      ? incoming.take()
+                                      : incoming.poll(GAP_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+                if (event == null) {
+                    resync();
+                }
+                while (event != null) {
+                    accept(event);
+                    event = incoming.poll();
+                }
+                applyPending();
+            }
+        } catch (InterruptedException e) {
+            /* Przerwanie przez close(). */
+        }
+    }
+
+    /* Przekłada zdarzenie z kolejki do bufora i co pół kolejki żąda kolejnych zdarzeń. */
+    private void accept(RotationEvent event) {
+        if (event.version() > applied) {
+            pending.put(event.version(), event);
+        }
+        consumed++;
+        if (consumed >= Math.max(1, maxPending / 2)) {
+            subscription.request(consumed);
+            consumed = 0;
+        }
+    }
+
+    /* Wykonuje kolejne wersje z bufora, a jeśli na brakującą czeka zbyt wiele zdarzeń,
+       pobiera stan od kostki głównej. */
+    private void applyPending() throws InterruptedException {
+        while (!pending.isEmpty()) {
+            long next = pending.firstKey();
+            if (next <= applied) {
+                pending.pollFirstEntry();
+            } else if (next == applied + 1) {
+                apply(pending.pollFirstEntry().getValue());
+            } else if (pending.size() > maxPending) {
+                resync();
+            } else {
+                return;
+            }
+        }
+    }
+
+    private void apply(RotationEvent event) throws InterruptedException {
+        if (event.isReset()) {
+            replica.overwrite(new CubeChanges(event.version(), solvedState, null, null));
+        } else {
+            replica.rotate(event.side(), event.layer());
+        }
+        applied = event.version();
+    }
+
+    /* Nanosi zmiany kostki głównej od wersji repliki. */
+    private void resync() throws InterruptedException {
+        CubeChanges changes = primary.showChangesSince(applied);
+        replica.overwrite(changes);
+        applied = changes.version();
+    }
+
+    /* Subskrybent strumienia kostki głównej - tylko przekłada zdarzenia do kolejki wątku
+       repliki. Zażądanych zdarzeń nigdy nie jest więcej, niż kolejka ma wolnych miejsc. */
+    private final class Follower implements Flow.Subscriber<RotationEvent> {
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            CubeReplica.this.subscription = subscription;
+            subscription.request(maxPending);
+        }
+
+        @Override
+        public void onNext(RotationEvent event) {
+            if (!closed) {
+                incoming.offer(event);
+            }
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            closed = true;
+            follower.interrupt();
+        }
+
+        @Override
+        public void onComplete() {
+        }
+    }
+}
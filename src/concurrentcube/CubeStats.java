@@ -0,0 +1,131 @@
+package concurrentcube;
+
+import java.util.Arrays;
+
+/* Migawka statystyk protokołu wejścia kostki. Poszczególne liczniki są odczytywane
+   niezależnie, więc przy trwających operacjach migawka może nie być idealnie spójna. */
+public final class CubeStats {
+
+    /* Histogram czasów oczekiwania w nanosekundach - kubełek i zlicza czasy
+       z przedziału [2^i, 2^(i + 1)). */
+    public static final class Histogram {
+        private final long[] counts;
+        private final long count;
+        private final long totalNanos;
+
+        Histogram(long[] counts, long totalNanos) {
+            this.counts = counts;
+            this.count = Arrays.stream(counts).sum();
+            this.totalNanos = totalNanos;
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long totalNanos() {
+            return totalNanos;
+        }
+
+        public double meanNanos() {
+            return count == 0 ? 0 : (double) totalNanos / count;
+        }
+
+        /* Górne ograniczenie danego percentyla (0 < percentile <= 100) - koniec kubełka,
+           w którym on wypada. */
+        public long percentileNanos(double percentile) {
+            if (percentile <= 0 || percentile > 100) {
+                throw new IllegalArgumentException("Unexpected percentile: " + percentile);
+            }
+            long threshold = (long) Math.ceil(count * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < counts.length; i++) {
+                seen += counts[i];
+                if (seen >= threshold && seen > 0) {
+                    return i == 63 ? Long.MAX_VALUE : (1L << (i + 1)) - 1;
+                }
+            }
+            return 0;
+        }
+
+        public long[] bucketCounts() {
+            return counts.clone();
+        }
+
+        @Override
+        public String toString() {
+            return "count=" + count + ", mean=" + (long) meanNanos() + "ns, p50=" + percentileNanos(50)
+                   + "ns, p99=" + percentileNanos(99) + "ns";
+        }
+    }
+
+    private final Histogram representativeWaits;
+    private final Histogram groupWaits;
+    private final Histogram layerWaits;
+    private final long groupSwitches;
+    private final long groupLimitHits;
+    private final int groupLimit;
+    private final long droppedListenerEvents;
+
+    CubeStats(Histogram representativeWaits,
+              Histogram groupWaits,
+              Histogram layerWaits,
+              long groupSwitches,
+              long groupLimitHits,
+              int groupLimit,
+              long droppedListenerEvents) {
+        this.representativeWaits = representativeWaits;
+        this.groupWaits = groupWaits;
+        this.layerWaits = layerWaits;
+        this.groupSwitches = groupSwitches;
+        this.groupLimitHits = groupLimitHits;
+        this.groupLimit = groupLimit;
+        this.droppedListenerEvents = droppedListenerEvents;
+    }
+
+    /* Czasy oczekiwania reprezentantów grup - pierwszych procesów, które musiały czekać,
+       aż inna grupa skończy pracę. */
+    public Histogram representativeWaits() {
+        return representativeWaits;
+    }
+
+    /* Czasy oczekiwania pozostałych procesów z grupy na obudzenie przez reprezentanta. */
+    public Histogram groupWaits() {
+        return groupWaits;
+    }
+
+    /* Czasy oczekiwania na zajętą warstwę (tylko te obroty, które musiały czekać). */
+    public Histogram layerWaits() {
+        return layerWaits;
+    }
+
+    /* Liczba zmian pracującej grupy na inną. */
+    public long groupSwitches() {
+        return groupSwitches;
+    }
+
+    /* Liczba procesów, które musiały czekać, bo ich pracująca grupa osiągnęła limit
+       wpuszczonych procesów, a czekała inna grupa. */
+    public long groupLimitHits() {
+        return groupLimitHits;
+    }
+
+    /* Obecny limit procesów wpuszczanych z pracującej grupy, gdy czekają inne grupy. */
+    public int groupLimit() {
+        return groupLimit;
+    }
+
+    /* Liczba zdarzeń beforeRotation i afterRotation pominiętych przy pełnym buforze
+       (zob. CubeOptions.asyncRotationListeners()). */
+    public long droppedListenerEvents() {
+        return droppedListenerEvents;
+    }
+
+    @Override
+    public String toString() {
+        return "CubeStats{representativeWaits=[" + representativeWaits + "], groupWaits=[" + groupWaits
+               + "], layerWaits=[" + layerWaits + "], groupSwitches=" + groupSwitches
+               + ", groupLimitHits=" + groupLimitHits + ", groupLimit=" + groupLimit
+               + ", droppedListenerEvents=" + droppedListenerEvents + "}";
+    }
+}
@@ -2,11 +2,21 @@ package concurrentcube;
 
 import static org.junit.Assert.*;
 import org.junit.Test;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.time.Duration;
 import java.time.Instant;
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.function.IntConsumer;
 import static java.lang.Thread.sleep;
 
 public class CubeTest {
@@ -268,6 +278,71 @@ public class CubeTest {
         }
     }
 
+    /* Test bezpieczeństwa optymistycznego pokazywania - każdy stan zwrócony przez show()
+       w trakcie współbieżnych obrotów musi być spójny (size * size kwadratów każdego koloru),
+       funkcje pokazywania nie mogą trwać razem z funkcjami obrotów, a po zakończeniu obrotów
+       show() musi zwracać ten sam stan co protokół. */
+    @Test
+    public void optimisticShowSafetyTest() throws InterruptedException, ExecutionException {
+        int size = 50;
+        AtomicInteger rotating = new AtomicInteger(0);
+        AtomicInteger overlaps = new AtomicInteger(0);
+        cube = new Cube(size,
+                (x, y) -> rotating.incrementAndGet(),
+                (x, y) -> rotating.decrementAndGet(),
+                () -> {
+                    if (rotating.get() != 0) {
+                        overlaps.incrementAndGet();
+                    }
+                },
+                () -> {
+                    if (rotating.get() != 0) {
+                        overlaps.incrementAndGet();
+                    }
+                },
+                new CubeOptions().optimisticShowing(true)
+        );
+
+        int THREADS = 1000;
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        ExecutorService showerPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+
+        List<Callable<Object>> rotations = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            rotations.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+        }
+        List<Callable<String>> showers = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            showers.add(new Shower());
+        }
+
+        Future<List<Future<Object>>> rotated = Executors.newSingleThreadExecutor()
+                .submit(() -> rotatorPool.invokeAll(rotations));
+        for (Future<String> result : showerPool.invokeAll(showers)) {
+            String cubeState = result.get();
+            for (int side = 0; side < SIDES; side++) {
+                int sideColor = Character.forDigit(side, 10);
+                long count = cubeState.chars().filter(ch -> ch == sideColor).count();
+                assertEquals(size * size, count);
+            }
+        }
+        rotated.get();
+        assertEquals(0, overlaps.get());
+
+        Cube protocolCube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        assertTrue(cube.hasCorrectNumberOfEachColor());
+        protocolCube.rotate(0, 0);
+        cube.reset();
+        cube.rotate(0, 0);
+        assertEquals(protocolCube.show(), cube.show());
+    }
+
     /* Test sprawdzający, czy dana sekwencja obrotów współbieżnie wykonuje się szybciej niż
        sekwencyjnie. */
     @Test
@@ -497,6 +572,1246 @@ public class CubeTest {
         assert(cube.hasCorrectNumberOfEachColor() && counterRotate.get() == 2 * THREADS + 1);
     }
 
+    /* Test statystyk protokołu - sekwencyjne operacje nie czekają, a zmiany grupy są liczone;
+       przy zagłodzeniu grupy limit musi zostać osiągnięty. */
+    @Test
+    public void statsTest() throws InterruptedException {
+        int size = 10;
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        cube.rotate(0, 0);
+        cube.rotate(5, 1);
+        cube.rotate(1, 0);
+        cube.show();
+        CubeStats stats = cube.getStats();
+        assertEquals(2, stats.groupSwitches());
+        assertEquals(0, stats.groupLimitHits());
+        assertEquals(0, stats.representativeWaits().count());
+        assertEquals(0, stats.groupWaits().count());
+        assertEquals(0, stats.layerWaits().count());
+
+        cube = new Cube(size,
+                (x, y) -> {
+                    try {
+                        sleep(1);
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                },
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        int THREADS = 1000;
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(Executors.callable(new Rotator(0, i % size)));
+            if (i % 100 == 0) {
+                tasks.add(Executors.callable(new Rotator(1, 0)));
+            }
+        }
+        rotatorPool.invokeAll(tasks);
+        stats = cube.getStats();
+        assertTrue(stats.groupSwitches() > 0);
+        assertTrue(stats.representativeWaits().count() > 0);
+        assertTrue(stats.layerWaits().count() > 0);
+        assertTrue(stats.layerWaits().percentileNanos(100) >= stats.layerWaits().percentileNanos(50));
+    }
+
+    /* Test samodostosowującego się limitu - przy mieszanym obciążeniu wszystkie obroty muszą
+       się wykonać, a limit musi pozostać dodatni. */
+    @Test
+    public void adaptiveGroupLimitTest() throws InterruptedException {
+        int size = 10;
+        AtomicInteger counterRotate = new AtomicInteger(0);
+        cube = new Cube(size,
+                (x, y) -> counterRotate.incrementAndGet(),
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().adaptiveGroupLimit(Duration.ofMillis(1))
+        );
+
+        int THREADS = 100000;
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+            if (i % 10 == 0) {
+                tasks.add(Executors.callable(() -> {
+                    try {
+                        cube.show();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }));
+            }
+        }
+
+        rotatorPool.invokeAll(tasks);
+        CubeStats stats = cube.getStats();
+        assertEquals(THREADS, counterRotate.get());
+        assertTrue(cube.hasCorrectNumberOfEachColor());
+        assertTrue(stats.groupLimit() >= 1);
+        assertTrue(stats.representativeWaits().count() > 0);
+    }
+
+    /* Test operacji asynchronicznych - obroty i pokazania zlecone z jednego wątku, wykonywane na
+       małej puli, muszą się wszystkie wykonać, a każdy pokazany stan musi być poprawny. */
+    @Test
+    public void asyncOperationsTest() throws InterruptedException, ExecutionException {
+        int size = 10;
+        AtomicInteger counterRotate = new AtomicInteger(0);
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        cube = new Cube(size,
+                (x, y) -> counterRotate.incrementAndGet(),
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().executor(executor)
+        );
+
+        int THREADS = 10000;
+
+        List<CompletableFuture<Void>> rotations = new ArrayList<>();
+        List<CompletableFuture<String>> shows = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            rotations.add(cube.rotateAsync(cube.getRandomSide(), cube.getRandomLayer()));
+            if (i % 100 == 0) {
+                shows.add(cube.showAsync());
+            }
+        }
+        CompletableFuture.allOf(rotations.toArray(new CompletableFuture<?>[0])).get();
+        for (CompletableFuture<String> show : shows) {
+            String cubeState = show.get();
+            for (int side = 0; side < SIDES; side++) {
+                int sideColor = Character.forDigit(side, 10);
+                long count = cubeState.chars().filter(ch -> ch == sideColor).count();
+                assertEquals(size * size, count);
+            }
+        }
+        assertEquals(THREADS, counterRotate.get());
+
+        Cube sequentialCube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        sequentialCube.rotate(2, 1);
+        cube.reset();
+        cube.rotateAsync(2, 1).get();
+        assertEquals(sequentialCube.show(), cube.showAsync().get());
+        executor.shutdown();
+    }
+
+    /* Test protokołu ze stanem w jednym słowie - procesy z różnych grup (obroty wokół różnych
+       osi i pokazania) nigdy nie pracują jednocześnie, a wszystkie obroty się wykonują. */
+    @Test
+    public void lockFreeAdmissionTest() throws InterruptedException {
+        int size = 10;
+        AtomicInteger counterRotate = new AtomicInteger(0);
+        AtomicIntegerArray running = new AtomicIntegerArray(4);
+        AtomicInteger violations = new AtomicInteger(0);
+        IntConsumer begin = group -> {
+            running.incrementAndGet(group);
+            for (int other = 0; other < 4; other++) {
+                if (other != group && running.get(other) > 0) {
+                    violations.incrementAndGet();
+                }
+            }
+        };
+        cube = new Cube(size,
+                (x, y) -> begin.accept(Math.min(x, cube.getOppositeSide(x))),
+                (x, y) -> {
+                    counterRotate.incrementAndGet();
+                    running.decrementAndGet(Math.min(x, cube.getOppositeSide(x)));
+                },
+                () -> begin.accept(3),
+                () -> running.decrementAndGet(3),
+                new CubeOptions().lockFreeAdmission(true)
+        );
+
+        int THREADS = 100000;
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+            if (i % 10 == 0) {
+                tasks.add(Executors.callable(() -> {
+                    try {
+                        cube.show();
+                    } catch (InterruptedException e) {
+                        e.printStackTrace();
+                    }
+                }));
+            }
+        }
+
+        rotatorPool.invokeAll(tasks);
+        assertEquals(0, violations.get());
+        assertEquals(THREADS, counterRotate.get());
+        assertTrue(cube.hasCorrectNumberOfEachColor());
+    }
+
+    /* Test wykluczania na warstwach - wiele wątków obraca te same kilka warstw jednej ściany
+       (po 4k obrotów na warstwę). Żadne dwa obroty tej samej warstwy nie mogą się nałożyć,
+       a na końcu kostka musi być ułożona. */
+    @Test
+    public void layerExclusionTest() throws InterruptedException {
+        int size = 40;
+        int LAYERS = 3;
+        AtomicIntegerArray running = new AtomicIntegerArray(size);
+        AtomicInteger violations = new AtomicInteger(0);
+        cube = new Cube(size,
+                (x, y) -> {
+                    if (running.incrementAndGet(y) != 1) {
+                        violations.incrementAndGet();
+                    }
+                },
+                (x, y) -> running.decrementAndGet(y),
+                () -> {},
+                () -> {}
+        );
+
+        int THREADS = 4 * LAYERS * 3000;
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(Executors.callable(new Rotator(0, i % LAYERS)));
+        }
+
+        rotatorPool.invokeAll(tasks);
+        assertEquals(0, violations.get());
+        assertTrue(cube.isSolved());
+    }
+
+    /* Test showInto() - każdy wariant zapisuje do bufora ten sam ciąg co show(), ByteBuffer
+       od swojej pozycji, a za mały bufor jest odrzucany. */
+    @Test
+    public void showIntoTest() throws InterruptedException {
+        int size = 5;
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        cube.rotate(2, 0);
+        cube.rotate(5, 1);
+        cube.rotate(3, 4);
+        String expected = cube.show();
+
+        byte[] bytes = new byte[SIDES * size * size];
+        cube.showInto(bytes);
+        assertEquals(expected, new String(bytes, StandardCharsets.US_ASCII));
+
+        char[] chars = new char[SIDES * size * size + 1];
+        cube.showInto(chars);
+        assertEquals(expected, new String(chars, 0, SIDES * size * size));
+
+        for (ByteBuffer buffer : List.of(ByteBuffer.allocate(200),
+                                                  ByteBuffer.allocateDirect(200))) {
+            buffer.put((byte) 'x');
+            cube.showInto(buffer);
+            assertEquals(1 + SIDES * size * size, buffer.position());
+            buffer.flip();
+            buffer.get();
+            byte[] written = new byte[buffer.remaining()];
+            buffer.get(written);
+            assertEquals(expected, new String(written, StandardCharsets.US_ASCII));
+        }
+
+        assertThrows(IllegalArgumentException.class, () -> cube.showInto(new byte[10]));
+        assertThrows(IllegalArgumentException.class, () -> cube.showInto(ByteBuffer.allocateDirect(10)));
+        assertThrows(ReadOnlyBufferException.class,
+                     () -> cube.showInto(ByteBuffer.allocate(SIDES * size * size).asReadOnlyBuffer()));
+        /* Odrzucony bufor nie zostawia grupy pokazywania w protokole. */
+        assertTrue(cube.tryRotate(0, 0, Duration.ofSeconds(10)));
+    }
+
+    /* Test zapamiętywania wyniku show() - bez obrotów pomiędzy pokazaniami zwracany jest ten sam
+       napis, a po obrocie i resecie nowy, poprawny stan (w obu trybach pokazywania). */
+    @Test
+    public void showCacheTest() throws InterruptedException {
+        for (boolean optimistic : new boolean[]{false, true}) {
+            int size = 3;
+            AtomicInteger counterShow = new AtomicInteger(0);
+            cube = new Cube(size,
+                    (x, y) -> {},
+                    (x, y) -> {},
+                    counterShow::incrementAndGet,
+                    () -> {},
+                    new CubeOptions().optimisticShowing(optimistic)
+            );
+            Cube sequentialCube = new Cube(size,
+                    (x, y) -> {},
+                    (x, y) -> {},
+                    () -> {},
+                    () -> {}
+            );
+
+            String solved = cube.show();
+            assertSame(solved, cube.show());
+
+            cube.rotate(1, 2);
+            sequentialCube.rotate(1, 2);
+            String rotated = cube.show();
+            assertEquals(sequentialCube.show(), rotated);
+            assertSame(rotated, cube.show());
+
+            cube.reset();
+            assertEquals(solved, cube.show());
+            /* Bez współbieżnych obrotów odczyty optymistyczne się udają i nie wywołują funkcji. */
+            assertEquals(optimistic ? 0 : 5, counterShow.get());
+        }
+    }
+
+    /* Test showChangesSince() - naniesienie zwróconych zmian na poprzedni stan daje obecny
+       stan; gdy historia nie sięga podanej wersji lub był reset, zwracany jest pełny stan. */
+    @Test
+    public void showChangesSinceTest() throws InterruptedException {
+        int size = 5;
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().changeLogCapacity(8)
+        );
+        Random random = new Random(42);
+
+        CubeChanges changes = cube.showChangesSince(-1);
+        assertTrue(changes.isFullState());
+        char[] cubeState = changes.state().toCharArray();
+        long version = changes.version();
+        for (int round = 0; round < 200; round++) {
+            int rotations = random.nextInt(6);
+            for (int i = 0; i < rotations; i++) {
+                cube.rotate(random.nextInt(SIDES), random.nextInt(size));
+            }
+            changes = cube.showChangesSince(version);
+            assertEquals(version + rotations, changes.version());
+            changes.applyTo(cubeState);
+            assertEquals(cube.show(), new String(cubeState));
+            version = changes.version();
+        }
+
+        /* Obrót wewnętrznej warstwy zmienia 4 * size kwadratów. */
+        cube.rotate(1, 2);
+        changes = cube.showChangesSince(version);
+        assertFalse(changes.isFullState());
+        assertEquals(4 * size, changes.count());
+        changes.applyTo(cubeState);
+        assertEquals(cube.show(), new String(cubeState));
+        version = changes.version();
+
+        for (int i = 0; i < 9; i++) {
+            cube.rotate(random.nextInt(SIDES), random.nextInt(size));
+        }
+        changes = cube.showChangesSince(version);
+        assertTrue(changes.isFullState());
+        assertEquals(cube.show(), changes.state());
+
+        cube.reset();
+        changes = cube.showChangesSince(changes.version());
+        assertTrue(changes.isFullState());
+        assertTrue(cube.isSolved());
+
+        /* Wersja z przyszłości jest odrzucana i nie blokuje kostki. */
+        long future = changes.version() + 1;
+        assertThrows(IllegalArgumentException.class, () -> cube.showChangesSince(future));
+        assertTrue(cube.tryRotate(0, 0, Duration.ofSeconds(10)));
+    }
+
+    /* Test równoległych obrotów - kostka dzieląca każdy obrót na podzadania musi po tym samym
+       ciągu obrotów być w tym samym stanie co kostka obracająca w jednym wątku, także przy
+       współbieżnych obrotach. */
+    @Test
+    public void parallelRotationsTest() throws InterruptedException {
+        int size = 64;
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().parallelRotations(1)
+        );
+        Cube sequentialCube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        Random random = new Random(7);
+        for (int i = 0; i < 1000; i++) {
+            int side = random.nextInt(SIDES);
+            int layer = random.nextInt(size);
+            cube.rotate(side, layer);
+            sequentialCube.rotate(side, layer);
+        }
+        assertEquals(sequentialCube.show(), cube.show());
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 10000; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+        }
+        rotatorPool.invokeAll(tasks);
+        assertTrue(cube.hasCorrectNumberOfEachColor());
+    }
+
+    /* Test obrotów według wyliczonych z góry pasów - dla różnych rozmiarów (także z obrotami
+       równoległymi) kostka po tych samych losowych obrotach ma ten sam stan co zwykła. */
+    @Test
+    public void precomputedRotationsTest() throws InterruptedException {
+        for (int size : new int[] {1, 2, 3, 5, 16}) {
+            for (int parallel : new int[] {0, 1}) {
+                Cube precomputedCube = new Cube(size,
+                        (x, y) -> {},
+                        (x, y) -> {},
+                        () -> {},
+                        () -> {},
+                        new CubeOptions().precomputedRotations(true).parallelRotations(parallel)
+                );
+                Cube plainCube = new Cube(size,
+                        (x, y) -> {},
+                        (x, y) -> {},
+                        () -> {},
+                        () -> {}
+                );
+                Random random = new Random(size);
+                for (int i = 0; i < 500; i++) {
+                    int side = random.nextInt(SIDES);
+                    int layer = random.nextInt(size);
+                    precomputedCube.rotate(side, layer);
+                    plainCube.rotate(side, layer);
+                    if (i < 20) {
+                        assertEquals(plainCube.show(), precomputedCube.show());
+                    }
+                }
+                assertEquals(plainCube.show(), precomputedCube.show());
+            }
+        }
+    }
+
+    /* Test wybranych przy starcie pętli po tablicy kolorów (wektorowych, jeśli JVM ma moduł
+       jdk.incubator.vector) - dla ciągów różnych długości, także krótszych od wektora, dają
+       ten sam wynik co pętle skalarne. */
+    @Test
+    public void stickerKernelsTest() {
+        StickerKernels kernels = StickerKernels.INSTANCE;
+        StickerKernels scalar = new StickerKernels.Scalar();
+        Random random = new Random(18);
+        for (int length : new int[] {0, 1, 7, 16, 33, 64, 100, 1000}) {
+            byte[] colors = new byte[4 * length + 3];
+            for (int i = 0; i < colors.length; i++) {
+                colors[i] = (byte) random.nextInt(SIDES);
+            }
+            byte[] expected = colors.clone();
+            scalar.cycleRuns(expected, 3 * length + 1, 1, length + 2, 2 * length + 3, length);
+            kernels.cycleRuns(colors, 3 * length + 1, 1, length + 2, 2 * length + 3, length);
+            assertArrayEquals(expected, colors);
+
+            int[] expectedCounters = new int[SIDES];
+            int[] counters = new int[SIDES];
+            scalar.countColors(colors, colors.length, expectedCounters);
+            kernels.countColors(colors, colors.length, counters);
+            assertArrayEquals(expectedCounters, counters);
+
+            byte[] uniform = new byte[length + 5];
+            Arrays.fill(uniform, (byte) 2);
+            assertTrue(kernels.isUniform(uniform, 0, uniform.length, (byte) 2));
+            if (length > 0) {
+                uniform[length] = 3;
+                assertFalse(kernels.isUniform(uniform, 0, uniform.length, (byte) 2));
+                assertTrue(kernels.isUniform(uniform, length + 1, uniform.length, (byte) 2));
+            }
+        }
+    }
+
+    /* Test liczników źle położonych kwadratów - po każdym obrocie isSolved() zgadza się
+       z przeglądaniem całej kostki, także przy obrotach równoległych i po reset(), a ciąg
+       obrotów z ciągiem odwrotnym (wykonywanym współbieżnie w obrębie grup) układa kostkę. */
+    @Test
+    public void solvedTrackingTest() throws InterruptedException {
+        for (int size : new int[] {1, 2, 3, 6}) {
+            for (int parallel : new int[] {0, 1}) {
+                Cube trackingCube = new Cube(size,
+                        (x, y) -> {},
+                        (x, y) -> {},
+                        () -> {},
+                        () -> {},
+                        new CubeOptions().solvedTracking(true).parallelRotations(parallel)
+                );
+                Cube plainCube = new Cube(size,
+                        (x, y) -> {},
+                        (x, y) -> {},
+                        () -> {},
+                        () -> {}
+                );
+                assertTrue(trackingCube.isSolved());
+                Random random = new Random(size);
+                int[] sides = new int[200];
+                int[] layers = new int[200];
+                for (int i = 0; i < sides.length; i++) {
+                    sides[i] = random.nextInt(SIDES);
+                    layers[i] = random.nextInt(size);
+                    trackingCube.rotate(sides[i], layers[i]);
+                    plainCube.rotate(sides[i], layers[i]);
+                    assertEquals(plainCube.isSolved(), trackingCube.isSolved());
+                }
+                for (int i = sides.length - 1; i >= 0; i--) {
+                    trackingCube.rotate(trackingCube.getOppositeSide(sides[i]),
+                                        trackingCube.getOppositeLayer(layers[i]));
+                    plainCube.rotate(plainCube.getOppositeSide(sides[i]),
+                                     plainCube.getOppositeLayer(layers[i]));
+                    assertEquals(plainCube.isSolved(), trackingCube.isSolved());
+                }
+                assertTrue(trackingCube.isSolved());
+
+                trackingCube.rotate(sides[0], layers[0]);
+                trackingCube.reset();
+                assertTrue(trackingCube.isSolved());
+            }
+        }
+
+        /* Obroty UP i odwrotne do nich obroty DOWN są przemienne. */
+        int size = 4;
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().solvedTracking(true)
+        );
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            int layer = i % size;
+            tasks.add(Executors.callable(new Rotator(0, layer)));
+            tasks.add(Executors.callable(new Rotator(5, cube.getOppositeLayer(layer))));
+        }
+        rotatorPool.invokeAll(tasks);
+        rotatorPool.shutdown();
+        assertTrue(cube.isSolved());
+
+        /* Przerwany wątek dostaje wynik pełnego sprawdzenia i zachowuje flagę przerwania. */
+        cube.rotate(1, 0);
+        Thread.currentThread().interrupt();
+        assertFalse(cube.isSolved());
+        assertTrue(Thread.interrupted());
+    }
+
+    /* Test skompilowanych ciągów obrotów - wykonany kilka razy ciąg z wielu płaszczyzn i ciąg
+       z jednej płaszczyzny dają ten sam stan co ich obroty wykonywane po kolei (także po zmianie
+       orientacji ścian i przy śledzeniu ułożenia), ciąg z ciągiem odwrotnym układa kostkę,
+       a współbieżne ciągi i obroty nie psują kostki. */
+    @Test
+    public void compiledSequenceTest() throws InterruptedException {
+        for (int size : new int[] {1, 2, 3, 5}) {
+            AtomicInteger hooks = new AtomicInteger(0);
+            Cube compiledCube = new Cube(size,
+                    (x, y) -> hooks.incrementAndGet(),
+                    (x, y) -> hooks.incrementAndGet(),
+                    () -> {},
+                    () -> {},
+                    new CubeOptions().solvedTracking(true)
+            );
+            Cube plainCube = new Cube(size,
+                    (x, y) -> {},
+                    (x, y) -> {},
+                    () -> {},
+                    () -> {}
+            );
+            Random random = new Random(size);
+            int[] sides = new int[40];
+            int[] layers = new int[40];
+            int[] inverseSides = new int[40];
+            int[] inverseLayers = new int[40];
+            for (int i = 0; i < sides.length; i++) {
+                sides[i] = random.nextInt(SIDES);
+                layers[i] = random.nextInt(size);
+                inverseSides[sides.length - 1 - i] = compiledCube.getOppositeSide(sides[i]);
+                inverseLayers[sides.length - 1 - i] = compiledCube.getOppositeLayer(layers[i]);
+            }
+            int[] axisSides = {0, 5, 0, 0, 5};
+            int[] axisLayers = {0, 0, size - 1, 0, size / 2};
+            CompiledSequence sequence = compiledCube.compile(sides, layers);
+            CompiledSequence axisSequence = compiledCube.compile(axisSides, axisLayers);
+            assertEquals(sides.length, sequence.length());
+
+            for (int repetition = 0; repetition < 3; repetition++) {
+                compiledCube.rotate(sequence);
+                plainCube.rotateBatch(sides, layers);
+                assertEquals(plainCube.show(), compiledCube.show());
+                assertEquals(plainCube.isSolved(), compiledCube.isSolved());
+                compiledCube.rotate(axisSequence);
+                plainCube.rotateBatch(axisSides, axisLayers);
+                assertEquals(plainCube.show(), compiledCube.show());
+            }
+            assertEquals(2 * 3 * (sides.length + axisSides.length), hooks.get());
+
+            compiledCube.reset();
+            compiledCube.rotate(sequence);
+            compiledCube.rotate(compiledCube.compile(inverseSides, inverseLayers));
+            assertTrue(compiledCube.isSolved());
+        }
+
+        int size = 4;
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        CompiledSequence crossAxis = cube.compile(new int[] {0, 1, 2, 3}, new int[] {0, 1, 2, 3});
+        CompiledSequence singleAxis = cube.compile(new int[] {1, 3}, new int[] {0, 2});
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 300; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+            tasks.add(() -> {
+                cube.rotate(crossAxis);
+                return null;
+            });
+            tasks.add(() -> {
+                cube.rotate(singleAxis);
+                return null;
+            });
+        }
+        for (Future<Object> future : rotatorPool.invokeAll(tasks)) {
+            try {
+                future.get();
+            } catch (ExecutionException e) {
+                throw new AssertionError(e);
+            }
+        }
+        rotatorPool.shutdown();
+        assertTrue(cube.hasCorrectNumberOfEachColor());
+    }
+
+    /* Kolejki protokołu do testowania polityk - grupa 3 czyta, grupy czekają w kolejności
+       z order, groupId ma waiting[groupId] procesów czekających od since[groupId]. */
+    private static SchedulingPolicy.GroupQueues queues(int working, int[] order, int[] waiting,
+                                                       long[] since) {
+        return new SchedulingPolicy.GroupQueues() {
+            public int groups() {
+                return 4;
+            }
+
+            public boolean isReaderGroup(int groupId) {
+                return groupId == 3;
+            }
+
+            public int workingGroup() {
+                return working;
+            }
+
+            public int waitingGroups() {
+                return order.length;
+            }
+
+            public int waitingGroup(int i) {
+                return order[i];
+            }
+
+            public int waitingProcesses(int groupId) {
+                return waiting[groupId];
+            }
+
+            public long waitingSince(int groupId) {
+                return since[groupId];
+            }
+        };
+    }
+
+    /* Test polityk protokołu - każda wybiera grupę zgodnie ze swoją regułą, a kostki z każdą
+       z nich (w obu wariantach protokołu) poprawnie wykonują współbieżne obroty i pokazywania. */
+    @Test
+    public void schedulingPolicyTest() throws InterruptedException {
+        long now = System.nanoTime();
+        int[] order = {1, 3, 0};
+        int[] waiting = {5, 2, 0, 1};
+        long[] since = {now - 1_000_000, now - 3_000_000, 0, now - 2_000_000};
+        SchedulingPolicy.GroupQueues rotating = queues(2, order, waiting, since);
+        SchedulingPolicy.GroupQueues showing = queues(3, new int[] {1, 0}, waiting, since);
+
+        assertEquals(1, SchedulingPolicy.fifo().nextGroup(rotating));
+        assertFalse(SchedulingPolicy.fifo().admitsWhileOthersWait(rotating, 10, 10));
+        assertTrue(SchedulingPolicy.fifo().admitsWhileOthersWait(rotating, 9, 10));
+
+        assertEquals(3, SchedulingPolicy.readerPreferring().nextGroup(rotating));
+        assertEquals(1, SchedulingPolicy.readerPreferring().nextGroup(showing));
+        assertTrue(SchedulingPolicy.readerPreferring().admitsWhileOthersWait(showing, 10, 10));
+        assertFalse(SchedulingPolicy.readerPreferring().admitsWhileOthersWait(rotating, 10, 10));
+
+        assertEquals(0, SchedulingPolicy.longestQueue().nextGroup(rotating));
+
+        /* Terminy: grupa 3 minął 1 ms temu, grupy 0 i 1 mijają za prawie 10 s. */
+        SchedulingPolicy edf = SchedulingPolicy.earliestDeadline(Duration.ofMillis(1),
+                                                                 Duration.ofSeconds(10));
+        assertEquals(3, edf.nextGroup(rotating));
+        assertFalse(edf.admitsWhileOthersWait(rotating, 0, 10));
+        assertTrue(edf.admitsWhileOthersWait(showing, 0, 10));
+
+        SchedulingPolicy[] policies = {
+                SchedulingPolicy.fifo(),
+                SchedulingPolicy.readerPreferring(),
+                SchedulingPolicy.longestQueue(),
+                SchedulingPolicy.earliestDeadline(Duration.ofMillis(1), Duration.ofMillis(5))
+        };
+        for (SchedulingPolicy policy : policies) {
+            for (boolean lockFree : new boolean[] {false, true}) {
+                int size = 4;
+                cube = new Cube(size,
+                        (x, y) -> {},
+                        (x, y) -> {},
+                        () -> {},
+                        () -> {},
+                        new CubeOptions().schedulingPolicy(policy).lockFreeAdmission(lockFree)
+                );
+                ExecutorService pool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+                List<Callable<Object>> tasks = new ArrayList<>();
+                for (int i = 0; i < 500; i++) {
+                    tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+                    if (i % 5 == 0) {
+                        tasks.add(Executors.callable(() -> {
+                            try {
+                                assertEquals(6 * size * size, cube.show().length());
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }));
+                    }
+                }
+                pool.invokeAll(tasks);
+                pool.shutdown();
+                assertTrue(cube.hasCorrectNumberOfEachColor());
+            }
+        }
+    }
+
+    /* Test tryRotate() i tryShow() - gdy obrót warstwy 0 ściany UP stoi w beforeRotation,
+       pokazanie, obrót z innej płaszczyzny i obrót tej samej warstwy rezygnują po upływie
+       czasu, obrót innej warstwy tej samej płaszczyzny się wykonuje, a po wszystkim protokół
+       działa normalnie (w obu wariantach protokołu). */
+    @Test
+    public void tryOperationsTest() throws InterruptedException {
+        for (boolean lockFree : new boolean[] {false, true}) {
+            int size = 3;
+            CountDownLatch started = new CountDownLatch(1);
+            CountDownLatch release = new CountDownLatch(1);
+            cube = new Cube(size,
+                    (side, layer) -> {
+                        if (side == 0 && layer == 0 && release.getCount() > 0) {
+                            started.countDown();
+                            try {
+                                release.await();
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                            }
+                        }
+                    },
+                    (x, y) -> {},
+                    () -> {},
+                    () -> {},
+                    new CubeOptions().lockFreeAdmission(lockFree)
+            );
+            Thread blocker = new Thread(new Rotator(0, 0));
+            blocker.start();
+            started.await();
+
+            Duration timeout = Duration.ofMillis(50);
+            assertNull(cube.tryShow(timeout));
+            assertFalse(cube.tryRotate(1, 0, timeout));
+            assertFalse(cube.tryRotate(0, 0, timeout));
+            assertTrue(cube.tryRotate(0, 1, timeout));
+
+            release.countDown();
+            blocker.join();
+            String state = cube.tryShow(Duration.ofSeconds(10));
+            assertEquals(cube.show(), state);
+            assertTrue(cube.tryRotate(1, 0, Duration.ZERO));
+            assertTrue(cube.tryRotate(0, 0, Duration.ZERO));
+            assertTrue(cube.hasCorrectNumberOfEachColor());
+        }
+    }
+
+    /* Test funkcji pokazywania w tryShow() - przy ciągłych obrotach część pokazań z zerowym
+       czasem rezygnuje, a beforeShowing i afterShowing są wywoływane dokładnie raz dla każdego
+       pokazania pod protokołem - przy pokazywaniu optymistycznym udane odczyty optymistyczne
+       ich nie wywołują. */
+    @Test
+    public void tryShowHooksTest() throws InterruptedException {
+        for (boolean optimistic : new boolean[] {false, true}) {
+            int size = 64;
+            AtomicInteger beforeShows = new AtomicInteger(0);
+            AtomicInteger afterShows = new AtomicInteger(0);
+            cube = new Cube(size,
+                    (x, y) -> {},
+                    (x, y) -> {},
+                    beforeShows::incrementAndGet,
+                    afterShows::incrementAndGet,
+                    new CubeOptions().optimisticShowing(optimistic)
+            );
+            AtomicInteger running = new AtomicInteger(1);
+            Thread rotator = new Thread(() -> {
+                try {
+                    while (running.get() > 0) {
+                        cube.rotate(cube.getRandomSide(), cube.getRandomLayer());
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            });
+            rotator.start();
+            int shown = 0;
+            int timedOut = 0;
+            Instant deadline = Instant.now().plusSeconds(10);
+            while ((timedOut == 0 || shown == 0) && Instant.now().isBefore(deadline)) {
+                if (cube.tryShow(Duration.ZERO) != null) {
+                    shown++;
+                } else {
+                    timedOut++;
+                }
+            }
+            running.set(0);
+            rotator.join();
+            assertTrue(timedOut > 0);
+            assertEquals(beforeShows.get(), afterShows.get());
+            if (optimistic) {
+                assertTrue(beforeShows.get() <= shown);
+            } else {
+                assertEquals(shown, beforeShows.get());
+            }
+        }
+    }
+
+    /* Test funkcji obrotów wywoływanych w tle - przy buforze mieszczącym wszystkie zdarzenia
+       żadne zdarzenie nie ginie, zdarzenia z jednego wątku przychodzą w kolejności obrotów,
+       a funkcje nie są wywoływane w wątkach obracających. Przy małym buforze i zablokowanej
+       funkcji obroty nie czekają, a nadmiarowe zdarzenia są pomijane i liczone. */
+    @Test
+    public void asyncRotationListenersTest() throws InterruptedException {
+        int size = 3;
+        List<Integer> events = new ArrayList<>();
+        AtomicInteger callsInRotatingThreads = new AtomicInteger(0);
+        Thread main = Thread.currentThread();
+        cube = new Cube(size,
+                (side, layer) -> {
+                    events.add(side * size + layer);
+                    if (Thread.currentThread() == main) {
+                        callsInRotatingThreads.incrementAndGet();
+                    }
+                },
+                (side, layer) -> events.add(-(side * size + layer) - 1),
+                () -> {},
+                () -> {},
+                new CubeOptions().asyncRotationListeners(1 << 12)
+        );
+        List<Integer> expected = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            int side = i % SIDES;
+            int layer = i % size;
+            cube.rotate(side, layer);
+            expected.add(side * size + layer);
+            expected.add(-(side * size + layer) - 1);
+        }
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+        }
+        rotatorPool.invokeAll(tasks);
+        rotatorPool.shutdown();
+        cube.close();
+
+        assertEquals(expected, events.subList(0, expected.size()));
+        assertEquals(2 * 1100, events.size());
+        assertEquals(1100, events.stream().filter(event -> event >= 0).count());
+        assertEquals(0, callsInRotatingThreads.get());
+        assertEquals(0, cube.getStats().droppedListenerEvents());
+
+        CountDownLatch release = new CountDownLatch(1);
+        AtomicInteger handled = new AtomicInteger(0);
+        cube = new Cube(size,
+                (side, layer) -> {
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                    handled.incrementAndGet();
+                },
+                (side, layer) -> handled.incrementAndGet(),
+                () -> {},
+                () -> {},
+                new CubeOptions().asyncRotationListeners(4)
+        );
+        for (int i = 0; i < 100; i++) {
+            assertTrue(cube.tryRotate(i % SIDES, i % size, Duration.ofSeconds(10)));
+        }
+        assertTrue(cube.getStats().droppedListenerEvents() > 0);
+        release.countDown();
+        cube.close();
+        assertEquals(2 * 100, handled.get() + cube.getStats().droppedListenerEvents());
+    }
+
+    /* Subskrybent zbierający zdarzenia strumienia rotations() - na początku żąda initialRequest. */
+    private static class EventCollector implements Flow.Subscriber<RotationEvent> {
+        private final long initialRequest;
+        final List<RotationEvent> events = Collections.synchronizedList(new ArrayList<>());
+        final CountDownLatch completed = new CountDownLatch(1);
+        Flow.Subscription subscription;
+
+        EventCollector(long initialRequest) {
+            this.initialRequest = initialRequest;
+        }
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+            if (initialRequest > 0) {
+                subscription.request(initialRequest);
+            }
+        }
+
+        @Override
+        public void onNext(RotationEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            fail(throwable.toString());
+        }
+
+        @Override
+        public void onComplete() {
+            completed.countDown();
+        }
+    }
+
+    /* Test strumienia zdarzeń obrotów - subskrybent z dużym buforem dostaje wszystkie wersje
+       i odtwarza z nich stan kostki, a subskrybenci, którzy nic nie żądają, zatrzymują
+       w buforach najstarsze (DROP) lub najnowsze (CONFLATE) zdarzenia, nie wstrzymując obrotów. */
+    @Test
+    public void rotationEventsTest() throws InterruptedException {
+        int size = 4;
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, new CubeOptions());
+        EventCollector all = new EventCollector(Long.MAX_VALUE);
+        cube.rotations(4096, RotationEvent.Overflow.DROP).subscribe(all);
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+        }
+        rotatorPool.invokeAll(tasks);
+        rotatorPool.shutdown();
+        EventCollector oldest = new EventCollector(0);
+        cube.rotations(3, RotationEvent.Overflow.DROP).subscribe(oldest);
+        EventCollector newest = new EventCollector(0);
+        cube.rotations(3, RotationEvent.Overflow.CONFLATE).subscribe(newest);
+        cube.reset();
+        for (int i = 0; i < 5; i++) {
+            cube.rotate(i, i % size);
+        }
+        cube.close();
+        assertTrue(all.completed.await(10, TimeUnit.SECONDS));
+
+        List<RotationEvent> events = new ArrayList<>(all.events);
+        events.sort(Comparator.comparingLong(RotationEvent::version));
+        assertEquals(1006, events.size());
+        for (int i = 0; i < events.size(); i++) {
+            assertEquals(i + 1, events.get(i).version());
+        }
+        assertTrue(events.get(1000).isReset());
+        Cube mirror = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {});
+        for (RotationEvent event : events) {
+            if (event.isReset()) {
+                mirror.reset();
+            } else {
+                mirror.rotate(event.side(), event.layer());
+            }
+        }
+        assertEquals(cube.show(), mirror.show());
+
+        oldest.subscription.request(10);
+        newest.subscription.request(10);
+        assertTrue(oldest.completed.await(10, TimeUnit.SECONDS));
+        assertTrue(newest.completed.await(10, TimeUnit.SECONDS));
+        assertEquals(3, oldest.events.size());
+        assertEquals(3, newest.events.size());
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1001 + i, oldest.events.get(i).version());
+            assertEquals(1004 + i, newest.events.get(i).version());
+        }
+    }
+
+    /* Test replik - po zakończeniu obrotów obie repliki (także ta z buforem tak małym, że
+       gubi zdarzenia i musi pobierać stan od kostki głównej) dochodzą do wersji i stanu
+       kostki głównej. Także wtedy, gdy wykonawca kostki głównej przekazuje zdarzenia
+       w wątku obracającym - replika nie może pobierać stanu w wywołaniu subskrybenta. */
+    @Test
+    public void cubeReplicaTest() throws InterruptedException {
+        int size = 5;
+        for (Executor executor : List.<Executor>of(ForkJoinPool.commonPool(), Runnable::run)) {
+            cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                            new CubeOptions().executor(executor));
+            cube.rotate(2, 3);
+            CubeReplica replica = new CubeReplica(cube, 4096);
+            CubeReplica lossyReplica = new CubeReplica(cube, 2);
+            assertEquals(1, replica.version());
+            assertEquals(cube.show(), replica.show());
+
+            ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+            List<Callable<Object>> tasks = new ArrayList<>();
+            for (int i = 0; i < 2000; i++) {
+                tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+            }
+            rotatorPool.invokeAll(tasks);
+            cube.reset();
+            rotatorPool.invokeAll(tasks.subList(0, 100));
+            rotatorPool.shutdown();
+
+            CubeChanges expected = cube.showChangesSince(-1);
+            assertEquals(2102, expected.version());
+            for (CubeReplica r : List.of(replica, lossyReplica)) {
+                Instant deadline = Instant.now().plusSeconds(10);
+                while (r.version() < expected.version() && Instant.now().isBefore(deadline)) {
+                    sleep(1);
+                }
+                CubeChanges shown = r.showChangesSince(-1);
+                assertEquals(expected.version(), shown.version());
+                assertEquals(expected.state(), shown.state());
+                r.close();
+            }
+        }
+    }
+
+    /* Test obrotów, w których funkcja beforeRotation lub afterRotation rzuca wyjątek - wyjątek
+       dociera do wywołującego (albo do wyniku rotateAsync()), a warstwy i protokół są zwalniane,
+       więc kolejne obroty tych samych warstw i pokazywanie kostki nie czekają w nieskończoność. */
+    @Test
+    public void throwingHookTest() throws InterruptedException {
+        int size = 3;
+        AtomicInteger throwingSide = new AtomicInteger(-1);
+        cube = new Cube(size,
+                (side, layer) -> {
+                    if (side == throwingSide.get() && layer == 0) {
+                        throw new IllegalStateException("before " + side);
+                    }
+                },
+                (side, layer) -> {
+                    if (side == throwingSide.get() && layer == 1) {
+                        throw new IllegalStateException("after " + side);
+                    }
+                },
+                () -> {},
+                () -> {}
+        );
+        CompiledSequence sequence = cube.compile(new int[] {0, 0}, new int[] {0, 1});
+        throwingSide.set(0);
+        assertThrows(IllegalStateException.class, () -> cube.rotate(0, 0));
+        assertThrows(IllegalStateException.class, () -> cube.rotate(0, 1));
+        assertThrows(IllegalStateException.class, () -> cube.rotateBatch(new int[] {0, 1}, new int[] {0, 0}));
+        assertThrows(IllegalStateException.class, () -> cube.tryRotate(0, 0, Duration.ofSeconds(1)));
+        assertThrows(IllegalStateException.class, () -> cube.rotate(sequence));
+        try {
+            cube.rotateAsync(0, 0).get(10, TimeUnit.SECONDS);
+            fail();
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IllegalStateException);
+        } catch (TimeoutException e) {
+            fail();
+        }
+
+        throwingSide.set(-1);
+        Duration timeout = Duration.ofSeconds(10);
+        assertTrue(cube.tryRotate(0, 0, timeout));
+        assertTrue(cube.tryRotate(0, 1, timeout));
+        assertTrue(cube.tryRotate(1, 0, timeout));
+        assertNotNull(cube.tryShow(timeout));
+        assertTrue(cube.hasCorrectNumberOfEachColor());
+    }
+
+    /* Test isSolved() bez śledzenia ułożenia - nie przechodzi przez protokół, więc można ją
+       wywołać z funkcji obrotu bez zakleszczenia. */
+    @Test
+    public void isSolvedFromHookTest() throws InterruptedException {
+        int size = 3;
+        AtomicInteger solvedInHook = new AtomicInteger(0);
+        cube = new Cube(size,
+                (x, y) -> {
+                    if (cube.isSolved()) {
+                        solvedInHook.incrementAndGet();
+                    }
+                },
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        assertTrue(cube.tryRotate(0, 0, Duration.ofSeconds(10)));
+        assertTrue(cube.tryRotate(0, 0, Duration.ofSeconds(10)));
+        assertEquals(1, solvedInHook.get());
+        assertFalse(cube.isSolved());
+    }
+
+    /* Test limitu przy długich kolejkach - procesy czekające już w kolejkach zajmują część
+       progu, więc limit rośnie mniej niż przy pustych kolejkach. */
+    @Test
+    public void adaptiveGroupLimitQueuesTest() {
+        AdaptiveGroupLimit emptyQueues = new AdaptiveGroupLimit(1_000_000, 100, 1, 1000);
+        AdaptiveGroupLimit longQueues = new AdaptiveGroupLimit(1_000_000, 100, 1, 1000);
+        emptyQueues.onIterationFinished(10_000, 1);
+        longQueues.onIterationFinished(10_000, 1);
+        emptyQueues.onRepresentativeAdmitted(0, 1, 0);
+        longQueues.onRepresentativeAdmitted(0, 1, 80);
+        assertEquals(75, emptyQueues.limit());
+        assertEquals(55, longQueues.limit());
+        longQueues.onRepresentativeAdmitted(0, 1, 200);
+        assertEquals(28, longQueues.limit());
+    }
+
+    /* Test stanu trzymanego w pliku - po checkpoint() i close() kostka otwarta z pliku ma ten sam
+       stan i wersję, a po "awarii" (otwarciu bez close() po kolejnych obrotach) wraca do stanu
+       z ostatniego punktu bezpiecznego. */
+    @Test
+    public void persistentStateTest() throws InterruptedException, IOException {
+        int size = 4;
+        Path file = Files.createTempFile("cube", ".state");
+        file.toFile().deleteOnExit();
+        CubeOptions options = new CubeOptions().persistentState(file);
+
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+        assertTrue(cube.isSolved());
+        cube.rotate(0, 1);
+        cube.rotate(3, 0);
+        cube.rotate(2, 3);
+        cube.close();
+        String closedState = cube.show();
+
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+        assertEquals(closedState, cube.show());
+        assertEquals(3, cube.showChangesSince(-1).version());
+        cube.rotate(1, 2);
+        cube.checkpoint();
+        String checkpointState = cube.show();
+        cube.rotate(5, 0);
+        cube.rotate(4, 3);
+        assertNotEquals(checkpointState, cube.show());
+
+        /* Poprzednia kostka nie została zamknięta - jakby proces padł po dwóch obrotach. */
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+        assertEquals(checkpointState, cube.show());
+        assertEquals(4, cube.showChangesSince(-1).version());
+
+        /* Proces padł w checkpoint() po utrwaleniu obróconych kolorów, wersji zapisywanego
+           punktu (bajty 48-55) i stanu CHECKPOINTING (bajty 12-15), a przed zapisem kopii -
+           otwarcie kończy zapis punktu i przyjmuje jego wersję. */
+        cube.rotate(0, 0);
+        String rotatedState = cube.show();
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(8).putLong(0, 5), 48);
+            channel.write(ByteBuffer.allocate(4).putInt(0, 2), 12);
+        }
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+        assertEquals(rotatedState, cube.show());
+        assertEquals(5, cube.showChangesSince(-1).version());
+
+        /* Zamknięcie przez przerwany wątek i tak zapisuje punkt bezpieczny, czeka na wątek
+           funkcji obrotów i zachowuje flagę przerwania. */
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {},
+                        new CubeOptions().persistentState(file).asyncRotationListeners(4));
+        cube.rotate(1, 1);
+        String interruptedState = cube.show();
+        Thread.currentThread().interrupt();
+        cube.close();
+        assertTrue(Thread.interrupted());
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+        assertEquals(interruptedState, cube.show());
+        assertEquals(6, cube.showChangesSince(-1).version());
+
+        /* Proces padł w trakcie tworzenia pliku, przed zapisem MAGIC (bajty 0-3) - otwarcie
+           tworzy ułożoną kostkę od nowa. */
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0);
+        }
+        cube = new Cube(size, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options);
+        assertTrue(cube.isSolved());
+        assertEquals(0, cube.showChangesSince(-1).version());
+
+        assertThrows(IllegalArgumentException.class, () ->
+                new Cube(size + 1, (x, y) -> {}, (x, y) -> {}, () -> {}, () -> {}, options));
+    }
+
+    /* Test dziennika obrotów - każdy współbieżnie wykonany obrót trafia do dziennika, a replay()
+       na nowej kostce odtwarza stan, także gdy ostatni rekord jest niepełny. */
+    @Test
+    public void moveLogReplayTest() throws InterruptedException, IOException {
+        int size = 6;
+        Path file = Files.createTempFile("cube", ".log");
+        file.toFile().deleteOnExit();
+        cube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().moveLog(file)
+        );
+
+        int THREADS = 2000;
+
+        ExecutorService rotatorPool = Executors.newFixedThreadPool(THREADPOOL_SIZE);
+        List<Callable<Object>> tasks = new ArrayList<>();
+        for (int i = 0; i < THREADS; i++) {
+            tasks.add(Executors.callable(new Rotator(cube.getRandomSide(), cube.getRandomLayer())));
+        }
+        rotatorPool.invokeAll(tasks);
+        cube.rotateBatch(new int[]{0, 5, 1}, new int[]{1, 2, 3});
+        cube.rotateAsync(2, 4).join();
+        cube.close();
+        assertEquals(8 + 4 * (THREADS + 4), Files.size(file));
+
+        /* Niepełny rekord po awarii w trakcie zapisu. */
+        Files.write(file, new byte[]{1, 2}, StandardOpenOption.APPEND);
+        Cube replayedCube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        replayedCube.replay(file);
+        assertEquals(cube.show(), replayedCube.show());
+
+        /* Porcja z błędnym rekordem jest odrzucana w całości, zanim zmieni kostkę. */
+        Path broken = Files.createTempFile("cube", ".log");
+        broken.toFile().deleteOnExit();
+        Files.write(broken, ByteBuffer.allocate(16).putInt(MoveLog.MAGIC).putInt(size)
+                .putInt(MoveLog.encode(0, 1)).putInt(MoveLog.encode(SIDES, 0)).array());
+        Cube brokenCube = new Cube(size,
+                (x, y) -> {},
+                (x, y) -> {},
+                () -> {},
+                () -> {},
+                new CubeOptions().optimisticShowing(true)
+        );
+        assertThrows(IllegalArgumentException.class, () -> brokenCube.replay(broken));
+        assertEquals(0, brokenCube.version());
+        assertTrue(brokenCube.isSolved());
+        assertNotNull(brokenCube.tryShow(Duration.ZERO));
+    }
+
     /* Test przerywający wątek na semaforze dla reprezentantów grup. */
     @Test
     public void interruptProcessOnRepresentativesSemaphoreTest() throws InterruptedException {
@@ -785,6 +2100,26 @@ public class CubeTest {
         assertEquals(expected, cube.show());
     }
 
+    /* Test sprawdzający, czy ciąg obrotów wykonany jednym wywołaniem rotateBatch daje ten sam
+       wynik co sekwencyjne wywołania rotate (ten sam ciąg co w sequentialRotateCorrectnessTestSmall). */
+    @Test
+    public void rotateBatchCorrectnessTest() throws InterruptedException {
+        int size = 3;
+        AtomicInteger counterRotate = new AtomicInteger(0);
+        cube = new Cube(size,
+                (x, y) -> counterRotate.incrementAndGet(),
+                (x, y) -> {},
+                () -> {},
+                () -> {}
+        );
+        int[] sides = {1, 1, 5, 2, 0, 0, 2, 3, 3, 1, 1, 4, 5, 5, 1, 0, 3, 0, 4, 1, 1, 1, 3, 4, 1, 0, 4, 4, 2, 1};
+        int[] layers = {1, 0, 0, 2, 2, 2, 0, 2, 1, 1, 2, 1, 2, 2, 2, 2, 2, 2, 0, 1, 1, 1, 2, 0, 2, 0, 2, 2, 0, 1};
+        cube.rotateBatch(sides, layers);
+        String expected = "021134322120543012235500155314424155504351333022014404";
+        assertEquals(expected, cube.show());
+        assertEquals(sides.length, counterRotate.get());
+    }
+
     /* Malutki test na poprawność obrotu UP. */
     @Test
     public void smallRotateUpTest() throws InterruptedException {
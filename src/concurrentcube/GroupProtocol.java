@@ -0,0 +1,409 @@
+package concurrentcube;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* Protokół wejścia grup procesów do sekcji krytycznej - w danej chwili pracują tylko procesy
+   z jednej grupy. To, którą czekającą grupę wpuścić i czy dołączać procesy do pracującej
+   grupy, gdy inne czekają, rozstrzyga SchedulingPolicy (domyślnie grupy są obsługiwane
+   w kolejności przyjścia ich reprezentantów, z limitem procesów w iteracji).
+
+   Czekające procesy są trzymane w jawnych kolejkach (po jednej na grupę), a procesy są
+   wpuszczane "w imieniu" czekających przez proces, który kończy iterację - to on, posiadając
+   mutex, aktualizuje liczniki i budzi czekających już jako pracujących. Dzięki temu proces
+   czekający nie musi być wątkiem - może być zadaniem, które zostanie zlecone do wykonania,
+   gdy przyjdzie kolej jego grupy (enterAsync). */
+class GroupProtocol {
+
+    /* Proces czekający w protokole wstępnym - albo wątek, który się zawiesił, albo zadanie
+       do uruchomienia po wpuszczeniu. */
+    private static final class Waiter {
+        private final int groupId;
+        private final Thread thread;
+        private final Runnable onAdmitted;
+        private final long since = System.nanoTime();
+        private volatile boolean admitted = false;
+
+        private Waiter(int groupId, Thread thread, Runnable onAdmitted) {
+            this.groupId = groupId;
+            this.thread = thread;
+            this.onAdmitted = onAdmitted;
+        }
+
+        private void wakeUp() {
+            if (thread != null) {
+                LockSupport.unpark(thread);
+            } else {
+                onAdmitted.run();
+            }
+        }
+    }
+
+    /* Mutex - semafor binarny mutex realizujący wzajemne wykluczanie. */
+    private final Semaphore mutex = new Semaphore(1, true);
+
+    /* Id pracującej grupy. */
+    private int workingGroup = -1;
+
+    /* Id grupy, która pracowała ostatnio - do liczenia zmian pracującej grupy. */
+    private int lastWorkingGroup = -1;
+
+    /* Liczba pracujących procesów. */
+    private int numberOfRunningProcesses = 0;
+
+    /* Kolejki czekających na wykonanie procesów z danych grup. */
+    private final ArrayDeque<Waiter>[] waitingProcesses;
+
+    /* Kolejka czekających grup w kolejności przyjścia ich reprezentantów - pierwszych
+       procesów, które musiały czekać. */
+    private final ArrayDeque<Integer> waitingGroups = new ArrayDeque<>();
+
+    /* Sztuczny limit na maksymalną liczbę procesów z grupy pracującej dopuszczonych do wykonania
+       operacji w danej iteracji - wejścia do sekcji krytycznej. Na wypadek, gdyby procesy z
+       pracującej obecnie grupy przychodziły w nieskończoność, a na wykonanie oczekiwał proces
+       z innej grupy, przy ustawionym limicie na pewno nie dojdzie do zagłodzenia.
+       Zmieniany tylko z posiadanym mutexem, i tylko w trybie samodostosowującym się. */
+    private volatile int groupLimit;
+
+    /* Dostosowuje groupLimit do obciążenia - null, jeśli limit jest stały. */
+    private final AdaptiveGroupLimit adaptiveGroupLimit;
+
+    /* Polityka wyboru grup i widok kolejek, który jej przekazujemy. */
+    private final SchedulingPolicy policy;
+    private final Queues queues = new Queues();
+
+    /* Id grupy, której procesy tylko czytają (-1, jeśli takiej nie ma). */
+    private final int readerGroup;
+
+    /* Liczba procesów z grupy pracującej dopuszczonych do wykonania operacji w danej iteracji. */
+    private int numberOfLetInProcesses = 0;
+
+    /* Liczba wszystkich procesów, które zaczęły pracę w danej iteracji, i jej początek. */
+    private int numberOfProcessesInIteration = 0;
+    private long iterationStart = 0;
+
+    /* Statystyki protokołu. Czasy mierzymy tylko dla procesów, które faktycznie czekały,
+       więc szybka ścieżka nie płaci za pomiary. */
+    private final LatencyHistogram representativeWaits = new LatencyHistogram();
+    private final LatencyHistogram groupWaits = new LatencyHistogram();
+    private final LongAdder groupSwitches = new LongAdder();
+    private final LongAdder groupLimitHits = new LongAdder();
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    GroupProtocol(int groups, int groupLimit, AdaptiveGroupLimit adaptiveGroupLimit,
+                  SchedulingPolicy policy, int readerGroup) {
+        this.groupLimit = groupLimit;
+        this.adaptiveGroupLimit = adaptiveGroupLimit;
+        this.policy = policy;
+        this.readerGroup = readerGroup;
+        this.waitingProcesses = new ArrayDeque[groups];
+        for (int i = 0; i < groups; i++) {
+            this.waitingProcesses[i] = new ArrayDeque<>();
+        }
+    }
+
+    /* Widok kolejek dla polityki - używany tylko z posiadanym mutexem. */
+    private final class Queues implements SchedulingPolicy.GroupQueues {
+        @Override
+        public int groups() {
+            return waitingProcesses.length;
+        }
+
+        @Override
+        public boolean isReaderGroup(int groupId) {
+            return groupId == readerGroup;
+        }
+
+        @Override
+        public int workingGroup() {
+            return getWorkingGroup();
+        }
+
+        @Override
+        public int waitingGroups() {
+            return waitingGroups.size();
+        }
+
+        @Override
+        public int waitingGroup(int i) {
+            if (i < 0 || i >= waitingGroups.size()) {
+                throw new IndexOutOfBoundsException("Unexpected value: " + i);
+            }
+            /* Grup jest kilka, więc przejście kolejki jest tanie. */
+            for (int groupId : waitingGroups) {
+                if (i-- == 0) {
+                    return groupId;
+                }
+            }
+            throw new IllegalStateException("Unexpected value: " + i);
+        }
+
+        @Override
+        public int waitingProcesses(int groupId) {
+            return waitingProcesses[groupId].size();
+        }
+
+        @Override
+        public long waitingSince(int groupId) {
+            Waiter oldest = waitingProcesses[groupId].peek();
+            if (oldest == null) {
+                throw new IllegalStateException("Unexpected value: " + groupId);
+            }
+            return oldest.since;
+        }
+    }
+
+    /* Zajęcie i zwolnienie mutexa chroniącego stan protokołu. */
+    void lock() {
+        mutex.acquireUninterruptibly();
+    }
+
+    void unlock() {
+        mutex.release();
+    }
+
+    /* Dostęp do id pracującej grupy i liczby pracujących procesów. Wywoływane z posiadanym
+       mutexem - podklasa może trzymać te wartości poza mutexem. */
+    int getWorkingGroup() {
+        return workingGroup;
+    }
+
+    void setWorkingGroup(int groupId) {
+        workingGroup = groupId;
+    }
+
+    int getNumberOfRunningProcesses() {
+        return numberOfRunningProcesses;
+    }
+
+    /* Zmienia liczbę pracujących procesów o delta i zwraca nową wartość. */
+    int addRunningProcesses(int delta) {
+        numberOfRunningProcesses += delta;
+        return numberOfRunningProcesses;
+    }
+
+    /* Czy czeka jakikolwiek proces. Wywoływana z posiadanym mutexem. */
+    boolean hasWaitingProcesses() {
+        return !waitingGroups.isEmpty();
+    }
+
+    /* Zaczynamy liczyć iterację od nowa, nie zmieniając pracującej grupy - dla podklasy, która
+       wpuszcza procesy także bez mutexa i od momentu pojawienia się czekających musi zacząć
+       liczyć wpuszczonych. Wywoływana z posiadanym mutexem. */
+    void restartIteration() {
+        numberOfLetInProcesses = 0;
+        numberOfProcessesInIteration = getNumberOfRunningProcesses();
+        if (adaptiveGroupLimit != null) {
+            iterationStart = System.nanoTime();
+        }
+    }
+
+    /* Zmiana pracującej grupy wykonana bez mutexa (przez podklasę) - tylko do statystyk. */
+    void countGroupSwitch() {
+        groupSwitches.increment();
+    }
+
+    /* Oznajmia, że od teraz pracuje dana grupa. Wywoływana z posiadanym mutexem. */
+    private void startWorking(int groupId) {
+        if (lastWorkingGroup != -1 && lastWorkingGroup != groupId) {
+            groupSwitches.increment();
+        }
+        lastWorkingGroup = groupId;
+        setWorkingGroup(groupId);
+        numberOfProcessesInIteration = 0;
+        if (adaptiveGroupLimit != null) {
+            iterationStart = System.nanoTime();
+        }
+    }
+
+    /* Próba wejścia bez czekania. Wywoływana z posiadanym mutexem - jeśli proces nie może
+       od razu zacząć pracy, zostaje dopisany do kolejki swojej grupy i zwracany jest
+       reprezentujący go obiekt, a w przeciwnym razie null. */
+    private Waiter admitOrEnqueue(int groupId, Thread thread, Runnable onAdmitted) {
+        int workingGroup = getWorkingGroup();
+        if (workingGroup == -1) {
+            /* Nikt nie pracuje - możemy rozpocząć pracę. */
+            numberOfLetInProcesses++;
+            startWorking(groupId);
+        } else if (workingGroup == groupId
+                   && (waitingGroups.isEmpty()
+                       || policy.admitsWhileOthersWait(queues, numberOfLetInProcesses, groupLimit))) {
+            /* Nasza grupa pracuje i nie przekroczyliśmy limitu lub nie ma innych czekających grup. */
+            numberOfLetInProcesses++;
+        } else {
+            /* Inna grupa obecnie pracuje lub osiągneliśmy limit - proces musi poczekać. */
+            if (workingGroup == groupId) {
+                groupLimitHits.increment();
+            }
+            Waiter waiter = new Waiter(groupId, thread, onAdmitted);
+            if (waitingProcesses[groupId].isEmpty()) {
+                /* Jesteśmy pierwszym procesem z naszej grupy - zostajemy reprezentantem. */
+                waitingGroups.add(groupId);
+            }
+            waitingProcesses[groupId].add(waiter);
+            return waiter;
+        }
+        addRunningProcesses(1);
+        numberOfProcessesInIteration++;
+        return null;
+    }
+
+    /* Wycofuje czekający proces z kolejki. Wywoływana z posiadanym mutexem. Jeśli wycofywany
+       był reprezentantem, jego grupa zachowuje miejsce w kolejce grup, o ile czeka z niej
+       jeszcze jakiś proces. */
+    private void cancel(Waiter waiter) {
+        ArrayDeque<Waiter> queue = waitingProcesses[waiter.groupId];
+        queue.remove(waiter);
+        if (queue.isEmpty()) {
+            waitingGroups.remove(Integer.valueOf(waiter.groupId));
+        }
+    }
+
+    /* Wpuszcza kolejną czekającą grupę - wszystkich jej czekających procesów, tak jak kaskadowe
+       budzenie w pierwotnym protokole. Wywoływana z posiadanym mutexem, gdy nikt nie pracuje.
+       Zwraca wpuszczone procesy, które trzeba obudzić po oddaniu mutexa. */
+    private List<Waiter> admitNextGroup() {
+        int groupId = policy.nextGroup(queues);
+        if (!waitingGroups.remove(Integer.valueOf(groupId))) {
+            throw new IllegalStateException("Unexpected value: " + groupId);
+        }
+        ArrayDeque<Waiter> queue = waitingProcesses[groupId];
+        startWorking(groupId);
+        long now = System.nanoTime();
+        if (adaptiveGroupLimit != null) {
+            int queuedProcesses = 0;
+            for (ArrayDeque<Waiter> waiting : waitingProcesses) {
+                queuedProcesses += waiting.size();
+            }
+            adaptiveGroupLimit.onRepresentativeAdmitted(now - queue.peek().since, waitingGroups.size(),
+                                                        queuedProcesses);
+            groupLimit = adaptiveGroupLimit.limit();
+        }
+        List<Waiter> admitted = new ArrayList<>(queue.size());
+        boolean representative = true;
+        while (!queue.isEmpty()) {
+            Waiter waiter = queue.poll();
+            (representative ? representativeWaits : groupWaits).record(now - waiter.since);
+            representative = false;
+            addRunningProcesses(1);
+            numberOfProcessesInIteration++;
+            waiter.admitted = true;
+            admitted.add(waiter);
+        }
+        return admitted;
+    }
+
+    /* Protokół wstępny przed wykonaniem operacji. Jeśli wątek zostanie przerwany w trakcie
+       czekania, wycofujemy go z kolejki i zgłaszamy wyjątek - operacja nie zostaje wykonana. */
+    void enter(int groupId) throws InterruptedException {
+        /* Wieszamy się na mutexie. */
+        lock();
+        Waiter waiter = admitOrEnqueue(groupId, Thread.currentThread(), null);
+        unlock();
+        if (waiter != null) {
+            awaitAdmission(waiter, false, 0);
+        }
+    }
+
+    /* Jak enter(), ale czeka najwyżej timeoutNanos - jeśli proces nie zostanie w tym czasie
+       wpuszczony, wycofujemy go z kolejki (tak jak przy przerwaniu) i zwracamy false. */
+    boolean tryEnter(int groupId, long timeoutNanos) throws InterruptedException {
+        lock();
+        Waiter waiter = admitOrEnqueue(groupId, Thread.currentThread(), null);
+        unlock();
+        return waiter == null || awaitAdmission(waiter, true, timeoutNanos);
+    }
+
+    private boolean awaitAdmission(Waiter waiter, boolean timed, long timeoutNanos)
+            throws InterruptedException {
+        long deadline = timed ? System.nanoTime() + timeoutNanos : 0;
+        while (!waiter.admitted) {
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    lock();
+                    boolean admitted = waiter.admitted;
+                    if (!admitted) {
+                        cancel(waiter);
+                    }
+                    unlock();
+                    /* Jeśli zdążyliśmy zostać wpuszczeni, pracujemy mimo upływu czasu. */
+                    return admitted;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                lock();
+                boolean admitted = waiter.admitted;
+                if (!admitted) {
+                    cancel(waiter);
+                }
+                unlock();
+                if (admitted) {
+                    /* Zdążyliśmy zostać wpuszczeni - wychodzimy jak zwykły pracujący proces. */
+                    exit();
+                }
+                Thread.currentThread().interrupt();
+                throw new InterruptedException();
+            }
+        }
+        return true;
+    }
+
+    /* Protokół wstępny, który nigdy nie wiesza wątku w oczekiwaniu na kolej grupy - onAdmitted
+       zostanie wywołane, gdy proces zostanie wpuszczony: od razu w wywołującym wątku albo
+       w wątku, który kończy iterację poprzedniej grupy. onAdmitted powinno więc tylko zlecić
+       właściwą pracę, a ta musi zakończyć się wywołaniem exit(). */
+    void enterAsync(int groupId, Runnable onAdmitted) {
+        lock();
+        Waiter waiter = admitOrEnqueue(groupId, null, onAdmitted);
+        unlock();
+        if (waiter == null) {
+            onAdmitted.run();
+        }
+    }
+
+    /* Protokół końcowy. */
+    void exit() {
+        List<Waiter> admitted = null;
+        /* Wieszamy się na mutexie. */
+        lock();
+        if (addRunningProcesses(-1) == 0) {
+            /* Wszyscy skończyli pracę. */
+            numberOfLetInProcesses = 0;
+            if (adaptiveGroupLimit != null) {
+                adaptiveGroupLimit.onIterationFinished(System.nanoTime() - iterationStart,
+                                                       numberOfProcessesInIteration);
+            }
+            if (!waitingGroups.isEmpty()) {
+                /* Jeśli jakaś grupa czeka, wpuszczamy ją. */
+                admitted = admitNextGroup();
+            } else {
+                /* Nie ma czekających grup. */
+                setWorkingGroup(-1);
+            }
+        }
+        unlock();
+        if (admitted != null) {
+            for (Waiter waiter : admitted) {
+                waiter.wakeUp();
+            }
+        }
+    }
+
+    CubeStats getStats(CubeStats.Histogram layerWaits, long droppedListenerEvents) {
+        return new CubeStats(representativeWaits.snapshot(),
+                             groupWaits.snapshot(),
+                             layerWaits,
+                             groupSwitches.sum(),
+                             groupLimitHits.sum(),
+                             groupLimit,
+                             droppedListenerEvents);
+    }
+}
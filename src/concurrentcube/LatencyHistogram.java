@@ -0,0 +1,36 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/* Histogram czasów oczekiwania o kubełkach rosnących wykładniczo - kubełek i zlicza czasy
+   z przedziału [2^i, 2^(i + 1)) nanosekund. Zapis to jedno zwiększenie LongAddera, więc
+   histogram może być stale włączony także przy dużej liczbie wątków. */
+final class LatencyHistogram {
+    private static final int BUCKETS = 64;
+
+    private final LongAdder[] buckets = new LongAdder[BUCKETS];
+    private final LongAdder totalNanos = new LongAdder();
+
+    LatencyHistogram() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    static int bucketOf(long nanos) {
+        return nanos <= 0 ? 0 : 63 - Long.numberOfLeadingZeros(nanos);
+    }
+
+    void record(long nanos) {
+        buckets[bucketOf(nanos)].increment();
+        totalNanos.add(nanos);
+    }
+
+    CubeStats.Histogram snapshot() {
+        long[] counts = new long[BUCKETS];
+        for (int i = 0; i < BUCKETS; i++) {
+            counts[i] = buckets[i].sum();
+        }
+        return new CubeStats.Histogram(counts, totalNanos.sum());
+    }
+}
@@ -0,0 +1,166 @@
+package concurrentcube;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/* Wzajemne wykluczanie obrotów tej samej warstwy. Zamiast osobnego semafora dla każdej
+   warstwy trzymamy po dwa bity na warstwę w słowach AtomicLong (po 32 warstwy na słowo):
+   czy warstwa jest zajęta i czy ktoś na nią czeka. Niezajętą warstwę zajmuje się jednym CAS-em. Proces, który zastanie
+   warstwę zajętą, chwilę się kręci, a potem dopisuje do kolejki tej warstwy i zasypia -
+   kolejki są tworzone tylko dla warstw, na które ktoś właśnie czeka, więc pamięć poza
+   bitami zależy od liczby czekających, a nie od rozmiaru kostki. */
+final class LayerLocks {
+    private static final int LAYERS_PER_WORD = 32;
+    private static final long LOCKED = 1L;
+    private static final long HAS_WAITERS = 2L;
+    private static final int SPINS = 64;
+
+    /* Nie AtomicLongArray - jego operacje idą przez VarHandle, których łączenie i kompilacja
+       przy pierwszych obrotach zauważalnie spowalniały start na małych maszynach. */
+    private final AtomicLong[] words;
+
+    /* Kolejki czekających na poszczególne warstwy - zmieniane tylko z zajętym monitorem mapy.
+       Korzystają z niej wyłącznie procesy, które i tak muszą czekać. */
+    private final HashMap<Integer, ArrayDeque<Thread>> waiters = new HashMap<>();
+
+    LayerLocks(int layers) {
+        this.words = new AtomicLong[(layers + LAYERS_PER_WORD - 1) / LAYERS_PER_WORD];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = new AtomicLong(0);
+        }
+    }
+
+    private static int word(int layer) {
+        return layer / LAYERS_PER_WORD;
+    }
+
+    private static int shift(int layer) {
+        return 2 * (layer % LAYERS_PER_WORD);
+    }
+
+    /* Ustawia (set = true) lub zeruje bity mask warstwy layer. Zwraca poprzednią wartość słowa. */
+    private long update(int layer, long mask, boolean set) {
+        int word = word(layer);
+        long bits = mask << shift(layer);
+        while (true) {
+            long current = words[word].get();
+            long next = set ? current | bits : current & ~bits;
+            if (current == next || words[word].compareAndSet(current, next)) {
+                return current;
+            }
+        }
+    }
+
+    private boolean isSet(int layer, long mask) {
+        return (words[word(layer)].get() & (mask << shift(layer))) != 0;
+    }
+
+    /* Próba zajęcia warstwy bez czekania. */
+    boolean tryAcquire(int layer) {
+        int word = word(layer);
+        long locked = LOCKED << shift(layer);
+        while (true) {
+            long current = words[word].get();
+            if ((current & locked) != 0) {
+                return false;
+            }
+            if (words[word].compareAndSet(current, current | locked)) {
+                return true;
+            }
+        }
+    }
+
+    /* Zajmuje warstwę, czekając, aż zwolni ją inny proces. Jeśli wątek zostanie przerwany
+       w trakcie czekania, rezygnuje i zgłasza wyjątek. */
+    void acquire(int layer) throws InterruptedException {
+        acquire(layer, false, 0);
+    }
+
+    /* Jak acquire(), ale czeka najwyżej timeoutNanos - zwraca false, jeśli w tym czasie
+       nie udało się zająć warstwy. */
+    boolean tryAcquire(int layer, long timeoutNanos) throws InterruptedException {
+        return acquire(layer, true, timeoutNanos);
+    }
+
+    private boolean acquire(int layer, boolean timed, long timeoutNanos) throws InterruptedException {
+        for (int i = 0; i < SPINS; i++) {
+            if (tryAcquire(layer)) {
+                return true;
+            }
+            Thread.onSpinWait();
+        }
+        long deadline = timed ? System.nanoTime() + timeoutNanos : 0;
+        Thread current = Thread.currentThread();
+        synchronized (waiters) {
+            ArrayDeque<Thread> queue = waiters.get(layer);
+            if (queue == null) {
+                queue = new ArrayDeque<>();
+                waiters.put(layer, queue);
+            }
+            queue.add(current);
+            update(layer, HAS_WAITERS, true);
+        }
+        /* Od teraz zwalniający warstwę zobaczy flagę i obudzi pierwszego czekającego. */
+        while (!tryAcquire(layer)) {
+            if (timed) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    giveUp(layer, current);
+                    return false;
+                }
+                LockSupport.parkNanos(this, remaining);
+            } else {
+                LockSupport.park(this);
+            }
+            if (Thread.interrupted()) {
+                giveUp(layer, current);
+                throw new InterruptedException();
+            }
+        }
+        removeWaiter(layer, current);
+        return true;
+    }
+
+    /* Rezygnacja z czekania na warstwę. */
+    private void giveUp(int layer, Thread thread) {
+        removeWaiter(layer, thread);
+        /* Mogliśmy zostać obudzeni zamiast następnego w kolejce - przekazujemy mu to. */
+        if (!isSet(layer, LOCKED)) {
+            wakeUpFirst(layer);
+        }
+    }
+
+    private void removeWaiter(int layer, Thread thread) {
+        synchronized (waiters) {
+            ArrayDeque<Thread> queue = waiters.get(layer);
+            queue.remove(thread);
+            if (queue.isEmpty()) {
+                waiters.remove(layer);
+                update(layer, HAS_WAITERS, false);
+            }
+        }
+    }
+
+    private void wakeUpFirst(int layer) {
+        Thread first = null;
+        synchronized (waiters) {
+            ArrayDeque<Thread> queue = waiters.get(layer);
+            if (queue != null) {
+                first = queue.peek();
+            }
+        }
+        LockSupport.unpark(first);
+    }
+
+    /* Zwalnia warstwę i budzi pierwszego czekającego, jeśli ktoś czeka. Obudzony nie dostaje
+       warstwy na własność - konkuruje o nią tak jak nowo przybyłe procesy, a gdy przegra,
+       znów zasypia i zostanie obudzony przy następnym zwolnieniu. */
+    void release(int layer) {
+        long previous = update(layer, LOCKED, false);
+        if ((previous & (HAS_WAITERS << shift(layer))) != 0) {
+            wakeUpFirst(layer);
+        }
+    }
+}
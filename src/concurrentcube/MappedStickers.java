@@ -0,0 +1,227 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/* Kolory kwadratów trzymane w pliku zmapowanym do pamięci, więc kostkę można po restarcie
+   otworzyć z dysku bez wczytywania i przetwarzania stanu.
+
+   Układ pliku:
+   - nagłówek (HEADER bajtów): MAGIC, FORMAT, rozmiar kostki, stan pliku, wersja stanu
+     z ostatniego punktu bezpiecznego, suma kontrolna kopii, orientacje ścian (bieżące
+     i z kopii), wersja zapisywanego punktu bezpiecznego,
+   - bieżące kolory (length() bajtów) - zmieniane w miejscu przez obroty,
+   - kopia kolorów z ostatniego punktu bezpiecznego.
+
+   Stan pliku mówi, co robić przy otwarciu:
+   - CLEAN - od ostatniego punktu bezpiecznego nie było modyfikacji, bieżące kolory są
+     aktualne i otwarcie jest natychmiastowe,
+   - DIRTY - po punkcie bezpiecznym ruszyły modyfikacje i proces mógł paść w środku obrotu -
+     wracamy do kopii (po sprawdzeniu sumy kontrolnej),
+   - CHECKPOINTING - proces padł w trakcie zapisu punktu bezpiecznego, kiedy żadna modyfikacja
+     nie trwa, a bieżące kolory zostały już utrwalone - kończymy zapis kopii.
+   Stan DIRTY jest utrwalany przed pierwszą modyfikacją po punkcie bezpiecznym. Wersja punktu
+   bezpiecznego zmienia się dopiero razem z przejściem do CLEAN, po utrwaleniu kopii, więc
+   zawsze opisuje kolory z kopii. */
+final class MappedStickers extends Stickers {
+    private static final int MAGIC = 0x43554245; // "CUBE"
+    private static final int FORMAT = 2;
+
+    private static final int CLEAN = 0;
+    private static final int DIRTY = 1;
+    private static final int CHECKPOINTING = 2;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int FORMAT_OFFSET = 4;
+    private static final int SIZE_OFFSET = 8;
+    private static final int STATE_OFFSET = 12;
+    private static final int VERSION_OFFSET = 16;
+    private static final int CHECKSUM_OFFSET = 24;
+    private static final int ORIENTATION_OFFSET = 32;
+    private static final int SAVED_ORIENTATION_OFFSET = 40;
+    private static final int PENDING_VERSION_OFFSET = 48;
+    private static final int HEADER = 56;
+
+    private final MappedByteBuffer buffer;
+    private final int shadow; // Początek kopii z punktu bezpiecznego.
+
+    /* Czy stan DIRTY jest już zapisany - do sprawdzania bez synchronizacji przed obrotem. */
+    private volatile boolean dirty;
+
+    private MappedStickers(int sides, int size, MappedByteBuffer buffer) {
+        super(sides, size, false);
+        this.buffer = buffer;
+        this.shadow = HEADER + length();
+        for (int side = 0; side < sides; side++) {
+            setOrientation(side, buffer.get(ORIENTATION_OFFSET + side));
+        }
+        this.dirty = buffer.getInt(STATE_OFFSET) == DIRTY;
+    }
+
+    /* Otwiera stan kostki z pliku file, tworząc ułożoną kostkę, jeśli plik nie istnieje,
+       i odtwarzając ostatni spójny stan po awarii. */
+    static MappedStickers open(Path file, int sides, int size) {
+        long length = (long) sides * size * size;
+        long fileLength = HEADER + 2 * length;
+        if (fileLength > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Cube too big to be mapped: " + size);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            if (channel.size() != 0 && channel.size() != fileLength) {
+                throw new IllegalArgumentException("Unexpected file length: " + channel.size());
+            }
+            MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileLength);
+            /* MAGIC jest zapisywany na końcu tworzenia pliku, więc plik bez niego to plik, którego
+               tworzenie przerwała awaria - tworzymy go od nowa. */
+            boolean created = buffer.getInt(MAGIC_OFFSET) == 0;
+            if (!created) {
+                if (buffer.getInt(MAGIC_OFFSET) != MAGIC || buffer.getInt(FORMAT_OFFSET) != FORMAT) {
+                    throw new IllegalArgumentException("Not a cube state file: " + file);
+                } else if (buffer.getInt(SIZE_OFFSET) != size) {
+                    throw new IllegalArgumentException("Unexpected value: " + buffer.getInt(SIZE_OFFSET));
+                }
+            }
+            MappedStickers stickers = new MappedStickers(sides, size, buffer);
+            if (created) {
+                stickers.create();
+            } else {
+                stickers.recover();
+            }
+            return stickers;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Zapisuje ułożoną kostkę jako punkt bezpieczny wersji 0, a na końcu MAGIC. */
+    private void create() {
+        reset();
+        buffer.putInt(FORMAT_OFFSET, FORMAT);
+        buffer.putInt(SIZE_OFFSET, size());
+        buffer.putLong(PENDING_VERSION_OFFSET, 0);
+        buffer.putInt(STATE_OFFSET, CHECKPOINTING);
+        saveCheckpoint();
+        buffer.putInt(MAGIC_OFFSET, MAGIC);
+        buffer.force(0, HEADER);
+    }
+
+    private void recover() {
+        switch (buffer.getInt(STATE_OFFSET)) {
+            case CLEAN:
+                break;
+            case DIRTY:
+                if (checksum(shadow) != buffer.getLong(CHECKSUM_OFFSET)) {
+                    throw new IllegalStateException("Corrupted cube state checkpoint");
+                }
+                for (int i = 0; i < length(); i++) {
+                    buffer.put(HEADER + i, buffer.get(shadow + i));
+                }
+                for (int side = 0; side < sides(); side++) {
+                    byte saved = buffer.get(SAVED_ORIENTATION_OFFSET + side);
+                    buffer.put(ORIENTATION_OFFSET + side, saved);
+                    setOrientation(side, saved);
+                }
+                buffer.force();
+                buffer.putInt(STATE_OFFSET, CLEAN);
+                buffer.force(0, HEADER);
+                dirty = false;
+                break;
+            case CHECKPOINTING:
+                saveCheckpoint();
+                break;
+            default:
+                throw new IllegalStateException("Unexpected value: " + buffer.getInt(STATE_OFFSET));
+        }
+    }
+
+    /* Suma kontrolna kolorów zaczynających się od from i odpowiadających im orientacji. */
+    private long checksum(int from) {
+        CRC32 crc = new CRC32();
+        for (int i = 0; i < length(); i++) {
+            crc.update(buffer.get(from + i));
+        }
+        int orientationOffset = from == shadow ? SAVED_ORIENTATION_OFFSET : ORIENTATION_OFFSET;
+        for (int side = 0; side < sides(); side++) {
+            crc.update(buffer.get(orientationOffset + side));
+        }
+        return crc.getValue();
+    }
+
+    /* Kopiuje bieżący stan do kopii, a po jej utrwaleniu zapisuje wersję punktu i oznacza plik
+       jako CLEAN. Zakłada, że bieżące kolory są już utrwalone, a w nagłówku jest stan
+       CHECKPOINTING i wersja zapisywanego punktu. */
+    private void saveCheckpoint() {
+        for (int i = 0; i < length(); i++) {
+            buffer.put(shadow + i, buffer.get(HEADER + i));
+        }
+        for (int side = 0; side < sides(); side++) {
+            buffer.put(SAVED_ORIENTATION_OFFSET + side, buffer.get(ORIENTATION_OFFSET + side));
+        }
+        buffer.putLong(CHECKSUM_OFFSET, checksum(shadow));
+        buffer.force();
+        buffer.putLong(VERSION_OFFSET, buffer.getLong(PENDING_VERSION_OFFSET));
+        buffer.putInt(STATE_OFFSET, CLEAN);
+        buffer.force(0, HEADER);
+        dirty = false;
+    }
+
+    @Override
+    synchronized void checkpoint(long version) {
+        buffer.force();
+        buffer.putLong(PENDING_VERSION_OFFSET, version);
+        buffer.force(0, HEADER);
+        buffer.putInt(STATE_OFFSET, CHECKPOINTING);
+        buffer.force(0, HEADER);
+        saveCheckpoint();
+    }
+
+    @Override
+    void beforeModification() {
+        if (!dirty) {
+            markDirty();
+        }
+    }
+
+    private synchronized void markDirty() {
+        if (!dirty) {
+            buffer.putInt(STATE_OFFSET, DIRTY);
+            buffer.force(0, HEADER);
+            dirty = true;
+        }
+    }
+
+    @Override
+    long version() {
+        return buffer.getLong(VERSION_OFFSET);
+    }
+
+    @Override
+    byte load(int index) {
+        return buffer.get(HEADER + index);
+    }
+
+    @Override
+    void store(int index, byte color) {
+        buffer.put(HEADER + index, color);
+    }
+
+    @Override
+    void fill(int from, int to, byte color) {
+        for (int i = from; i < to; i++) {
+            buffer.put(HEADER + i, color);
+        }
+    }
+
+    @Override
+    void setOrientation(int side, int quarterTurns) {
+        super.setOrientation(side, quarterTurns);
+        buffer.put(ORIENTATION_OFFSET + side, (byte) orientation(side));
+    }
+}
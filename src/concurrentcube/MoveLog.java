@@ -0,0 +1,181 @@
+package concurrentcube;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/* Dziennik obrotów zapisywany przed potwierdzeniem obrotu (write-ahead log). Plik zaczyna się
+   nagłówkiem (MAGIC, rozmiar kostki), po którym każdy obrót zajmuje 4 bajty: side << 24 | layer.
+
+   Obroty dopisują rekordy do bufora w pamięci (append()), a po wyjściu z protokołu czekają, aż
+   ich rekord trafi na dysk (awaitDurable()). Pierwszy czekający zapisuje i synchronizuje
+   (fsync) wszystko, co zebrało się w buforze, a pozostali czekają na jego wynik - obroty
+   z tej samej iteracji grupy zwykle dzielą więc jeden fsync. */
+final class MoveLog {
+    static final int MAGIC = 0x43554d56; // "CUMV"
+    static final int HEADER = 8;
+    static final int RECORD = 4;
+    static final int MAX_LAYERS = 1 << 24;
+
+    private final FileChannel channel;
+
+    /* Rekordy czekające na zapis i pozycje końca dopisanych i utrwalonych rekordów. Chronione
+       monitorem dziennika. */
+    private ByteBuffer pending = ByteBuffer.allocate(64 * RECORD);
+    private ByteBuffer spare = ByteBuffer.allocate(64 * RECORD);
+    private long appended;
+    private long durable;
+    private boolean flushing = false;
+    private IOException failure = null;
+
+    private MoveLog(FileChannel channel, long end) {
+        this.channel = channel;
+        this.appended = end;
+        this.durable = end;
+    }
+
+    /* Otwiera dziennik do dopisywania, tworząc go, jeśli nie istnieje. Niepełny ostatni rekord
+       (po awarii w trakcie zapisu) jest odcinany. */
+    static MoveLog open(Path file, int size) {
+        if (size > MAX_LAYERS) {
+            throw new IllegalArgumentException("Unexpected value: " + size);
+        }
+        try {
+            FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE,
+                                                   StandardOpenOption.READ, StandardOpenOption.WRITE);
+            if (channel.size() == 0) {
+                ByteBuffer header = ByteBuffer.allocate(HEADER).putInt(MAGIC).putInt(size).flip();
+                while (header.hasRemaining()) {
+                    channel.write(header, HEADER - header.remaining());
+                }
+                channel.force(true);
+            } else {
+                checkHeader(channel, size);
+            }
+            long end = HEADER + (channel.size() - HEADER) / RECORD * RECORD;
+            channel.truncate(end);
+            channel.position(end);
+            return new MoveLog(channel, end);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /* Sprawdza nagłówek dziennika - czy dotyczy kostki rozmiaru size (dowolnego dla size < 0) -
+       i zwraca zapisany w nim rozmiar. */
+    static int checkHeader(FileChannel channel, int size) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        while (header.hasRemaining()) {
+            if (channel.read(header, header.position()) < 0) {
+                break;
+            }
+        }
+        header.flip();
+        if (header.remaining() < HEADER || header.getInt() != MAGIC) {
+            throw new IllegalArgumentException("Not a move log");
+        }
+        int loggedSize = header.getInt();
+        if (size >= 0 && loggedSize != size) {
+            throw new IllegalArgumentException("Unexpected value: " + loggedSize);
+        }
+        return loggedSize;
+    }
+
+    static int encode(int side, int layer) {
+        return side << 24 | layer;
+    }
+
+    static int side(int record) {
+        return record >>> 24;
+    }
+
+    static int layer(int record) {
+        return record & (MAX_LAYERS - 1);
+    }
+
+    /* Dopisuje obrót i zwraca pozycję końca jego rekordu - do przekazania awaitDurable(). */
+    synchronized long append(int side, int layer) {
+        if (!pending.hasRemaining()) {
+            pending = ByteBuffer.allocate(2 * pending.capacity()).put(pending.flip());
+        }
+        pending.putInt(encode(side, layer));
+        appended += RECORD;
+        return appended;
+    }
+
+    /* Czeka, aż rekordy do pozycji position będą na dysku, w razie potrzeby samemu je zapisując.
+       Nie reaguje na przerwania - obrót został już wykonany. */
+    void awaitDurable(long position) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                ByteBuffer batch;
+                long batchEnd;
+                synchronized (this) {
+                    while (durable < position && flushing && failure == null) {
+                        try {
+                            wait();
+                        } catch (InterruptedException e) {
+                            interrupted = true;
+                        }
+                    }
+                    if (failure != null) {
+                        throw new UncheckedIOException(failure);
+                    }
+                    if (durable >= position) {
+                        return;
+                    }
+                    /* Zostajemy zapisującym - zabieramy wszystko, co się zebrało. */
+                    flushing = true;
+                    batch = pending.flip();
+                    pending = spare.clear();
+                    batchEnd = appended;
+                }
+                IOException error = null;
+                try {
+                    while (batch.hasRemaining()) {
+                        channel.write(batch);
+                    }
+                    channel.force(false);
+                } catch (IOException e) {
+                    error = e;
+                }
+                synchronized (this) {
+                    spare = batch;
+                    flushing = false;
+                    if (error != null) {
+                        failure = error;
+                    } else {
+                        durable = batchEnd;
+                    }
+                    notifyAll();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /* Zapisuje i synchronizuje rekordy, na które nikt jeszcze nie czekał (np. obrotów
+       przerwanej serii rotateBatch()), i zamyka plik. */
+    void close() {
+        long end;
+        synchronized (this) {
+            end = appended;
+        }
+        try {
+            awaitDurable(end);
+        } finally {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        }
+    }
+}
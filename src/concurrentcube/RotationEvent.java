@@ -0,0 +1,52 @@
+package concurrentcube;
+
+/* Zdarzenie strumienia Cube.rotations() - obrót (side, layer), po którym stan kostki ma
+   wersję version() (tę samą co w showChangesSince()), albo reset() kostki.
+
+   Obroty jednej grupy kończą się współbieżnie, więc zdarzenia mogą przychodzić w innej
+   kolejności niż wersje, ale takie obroty są przemienne. Luka w wersjach oznacza zdarzenia
+   pominięte przy przepełnieniu bufora subskrybenta - brakujący stan można wtedy pobrać
+   przez showChangesSince(). */
+public final class RotationEvent {
+    /* Co robić ze zdarzeniem, gdy bufor subskrybenta jest pełny. */
+    public enum Overflow {
+        /* Odrzuca nowe zdarzenie - subskrybent dostaje najstarsze zdarzenia. */
+        DROP,
+        /* Odrzuca najstarsze zdarzenie z bufora - subskrybent dostaje najnowsze zdarzenia. */
+        CONFLATE
+    }
+
+    private final long version;
+    private final int side;
+    private final int layer;
+
+    RotationEvent(long version, int side, int layer) {
+        this.version = version;
+        this.side = side;
+        this.layer = layer;
+    }
+
+    /* Wersja stanu kostki tuż po tym obrocie. */
+    public long version() {
+        return version;
+    }
+
+    /* Obracana ściana lub -1 dla resetu. */
+    public int side() {
+        return side;
+    }
+
+    /* Obracana warstwa lub -1 dla resetu. */
+    public int layer() {
+        return layer;
+    }
+
+    public boolean isReset() {
+        return side < 0;
+    }
+
+    @Override
+    public String toString() {
+        return isReset() ? "reset@" + version : "(" + side + ", " + layer + ")@" + version;
+    }
+}
@@ -0,0 +1,157 @@
+package concurrentcube;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/* Wywołuje funkcje beforeRotation i afterRotation poza sekcją krytyczną obrotu - obracające
+   procesy tylko dopisują zdarzenia do ograniczonego bufora cyklicznego, a osobny wątek
+   w tle wywołuje funkcje w kolejności dopisania.
+
+   Bufor to kolejka wielu producentów bez blokad: każda komórka ma numer sekwencyjny, który
+   mówi, czy jest wolna dla pozycji pos (równy pos), czy zapisana (pos + 1). Producent
+   rezerwuje pozycję CAS-em na tail, zapisuje zdarzenie i publikuje je numerem komórki.
+   Jedyny konsument czyta komórkę head, gdy jej numer to head + 1, i zwalnia ją dla pozycji
+   head + capacity. Producent nigdy nie czeka na konsumenta, bo robi to w trakcie obrotu,
+   z zajętą warstwą: gdy bufor jest pełny albo dyspozytor jest już zamknięty, zdarzenie
+   jest odrzucane i tylko liczone (zob. dropped()). */
+final class RotationEventDispatcher implements AutoCloseable {
+    private static final long AFTER = 1L;
+    private static final int SIDE_SHIFT = 1;
+    private static final int LAYER_SHIFT = 4;
+
+    private final long[] events;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong(0);
+    private long head = 0; // Tylko wątek konsumenta.
+
+    private final RotationListener beforeRotation;
+    private final RotationListener afterRotation;
+    private final Thread consumer;
+    private final LongAdder dropped = new LongAdder();
+
+    /* Czy konsument zasnął (lub zaraz zaśnie) na pustym buforze. */
+    private volatile boolean sleeping = false;
+    private volatile boolean closed = false;
+
+    RotationEventDispatcher(int capacity, RotationListener beforeRotation,
+                            RotationListener afterRotation) {
+        int rounded = Integer.highestOneBit(Math.max(1, capacity - 1)) << 1;
+        this.events = new long[rounded];
+        this.sequences = new AtomicLongArray(rounded);
+        for (int i = 0; i < rounded; i++) {
+            sequences.set(i, i);
+        }
+        this.mask = rounded - 1;
+        this.beforeRotation = beforeRotation;
+        this.afterRotation = afterRotation;
+        this.consumer = new Thread(this::drain, "cube-rotation-listeners");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    /* Funkcje dla obracających procesów - tylko dopisują zdarzenia. */
+    RotationListener before() {
+        return (side, layer) -> publish(((long) layer << LAYER_SHIFT) | ((long) side << SIDE_SHIFT));
+    }
+
+    RotationListener after() {
+        return (side, layer) -> publish(((long) layer << LAYER_SHIFT) | ((long) side << SIDE_SHIFT) | AFTER);
+    }
+
+    private void publish(long event) {
+        if (closed) {
+            dropped.increment();
+            return;
+        }
+        while (true) {
+            long position = tail.get();
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    events[index] = event;
+                    sequences.set(index, position + 1);
+                    if (sleeping) {
+                        LockSupport.unpark(consumer);
+                    }
+                    return;
+                }
+            } else if (difference < 0) {
+                /* Bufor pełny - konsument nie nadąża, więc odrzucamy zdarzenie. */
+                dropped.increment();
+                if (sleeping) {
+                    LockSupport.unpark(consumer);
+                }
+                return;
+            }
+        }
+    }
+
+    /* Liczba zdarzeń odrzuconych przy pełnym buforze lub po close(). */
+    long dropped() {
+        return dropped.sum();
+    }
+
+    /* Pętla konsumenta. Po close() opróżnia bufor i kończy pracę. */
+    private void drain() {
+        while (true) {
+            int index = (int) head & mask;
+            if (sequences.get(index) == head + 1) {
+                long event = events[index];
+                sequences.set(index, head + mask + 1);
+                head++;
+                dispatch(event);
+            } else if (closed && tail.get() == head) {
+                return;
+            } else {
+                sleeping = true;
+                /* Ponowne sprawdzenie po ustawieniu flagi - producent, który nie zobaczył flagi,
+                   zdążył już opublikować zdarzenie. */
+                if (sequences.get(index) != head + 1 && !closed) {
+                    LockSupport.park(this);
+                }
+                sleeping = false;
+            }
+        }
+    }
+
+    private void dispatch(long event) {
+        int side = (int) (event >>> SIDE_SHIFT) & 7;
+        int layer = (int) (event >>> LAYER_SHIFT);
+        try {
+            if ((event & AFTER) != 0) {
+                afterRotation.accept(side, layer);
+            } else {
+                beforeRotation.accept(side, layer);
+            }
+        } catch (RuntimeException e) {
+            /* Błąd obserwatora nie może zatrzymać wywoływania kolejnych zdarzeń. */
+            Thread.UncaughtExceptionHandler handler = consumer.getUncaughtExceptionHandler();
+            handler.uncaughtException(consumer, e);
+        }
+    }
+
+    /* Czeka, aż wszystkie dopisane zdarzenia zostaną obsłużone, i kończy wątek konsumenta.
+       Zdarzenia obrotów kończących się w trakcie close() lub po nim mogą zostać pominięte.
+       Przerwanie wątku nie przerywa czekania - flaga przerwania jest przywracana na końcu. */
+    @Override
+    public void close() {
+        closed = true;
+        LockSupport.unpark(consumer);
+        boolean interrupted = false;
+        while (true) {
+            try {
+                consumer.join();
+                break;
+            } catch (InterruptedException e) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,8 @@
+package concurrentcube;
+
+/* Funkcja wywoływana przed lub po obrocie (side, layer) - odpowiednik
+   BiConsumer<Integer, Integer> bez pakowania argumentów przy każdym obrocie. */
+@FunctionalInterface
+public interface RotationListener {
+    void accept(int side, int layer);
+}
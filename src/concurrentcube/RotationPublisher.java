@@ -0,0 +1,194 @@
+package concurrentcube;
+
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Flow;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/* Strumień zdarzeń obrotów kostki (zob. Cube.rotations()). Każdy subskrybent ma własny
+   ograniczony bufor - obracający proces tylko wkłada zdarzenie do buforów (w czasie stałym,
+   a przy pełnym buforze odrzuca zdarzenie zgodnie z RotationEvent.Overflow), a zdarzenia
+   są przekazywane subskrybentom na wykonawcy kostki, nie więcej niż zażądali przez
+   request(). Wolny subskrybent gubi więc zdarzenia, ale nigdy nie wstrzymuje obrotów. */
+final class RotationPublisher {
+    private final Executor executor;
+    private final CopyOnWriteArrayList<Subscription> subscriptions = new CopyOnWriteArrayList<>();
+    private volatile boolean closed = false;
+
+    RotationPublisher(Executor executor) {
+        this.executor = executor;
+    }
+
+    /* Publisher, którego każdy subskrybent dostaje bufor na capacity zdarzeń. */
+    Flow.Publisher<RotationEvent> publisher(int capacity, RotationEvent.Overflow overflow) {
+        return subscriber -> subscribe(subscriber, capacity, overflow);
+    }
+
+    private void subscribe(Flow.Subscriber<? super RotationEvent> subscriber, int capacity,
+                           RotationEvent.Overflow overflow) {
+        if (subscriber == null) {
+            throw new NullPointerException("Subscriber must not be null");
+        }
+        Subscription subscription = new Subscription(subscriber, capacity, overflow);
+        subscriber.onSubscribe(subscription);
+        subscriptions.add(subscription);
+        /* Subskrybent mógł zrezygnować już w onSubscribe(), a kostka mogła zostać zamknięta
+           przed dodaniem subskrypcji do listy. */
+        if (subscription.cancelled) {
+            subscriptions.remove(subscription);
+        } else if (closed) {
+            subscription.complete();
+        }
+    }
+
+    /* Wywoływana przez obracający proces po zakończeniu obrotu - bez subskrybentów nie
+       tworzy nawet zdarzenia. */
+    void publish(long version, int side, int layer) {
+        if (subscriptions.isEmpty()) {
+            return;
+        }
+        RotationEvent event = new RotationEvent(version, side, layer);
+        for (Subscription subscription : subscriptions) {
+            subscription.offer(event);
+        }
+    }
+
+    /* Kończy strumień - subskrybenci dostaną onComplete() po odebraniu zdarzeń z buforów. */
+    void close() {
+        closed = true;
+        for (Subscription subscription : subscriptions) {
+            subscription.complete();
+        }
+    }
+
+    /* Subskrypcja z buforem cyklicznym chronionym monitorem subskrypcji - monitor jest
+       trzymany tylko na czas włożenia lub wyjęcia zdarzenia, a onNext() jest wywoływane
+       poza nim. Zdarzenia przekazuje co najwyżej jedno zadanie na wykonawcy naraz: zadanie
+       jest zlecane przez proces, który zwiększył pending z 0, i działa, dopóki pending
+       nie spadnie z powrotem do 0. */
+    private final class Subscription implements Flow.Subscription, Runnable {
+        private final Flow.Subscriber<? super RotationEvent> subscriber;
+        private final RotationEvent.Overflow overflow;
+        private final RotationEvent[] buffer;
+        private int head = 0; // Chronione monitorem subskrypcji.
+        private int count = 0; // Chronione monitorem subskrypcji.
+
+        private final AtomicLong demand = new AtomicLong(0);
+        private final AtomicInteger pending = new AtomicInteger(0);
+        private volatile boolean cancelled = false;
+        private volatile boolean done = false;
+        private volatile IllegalArgumentException badRequest = null;
+
+        Subscription(Flow.Subscriber<? super RotationEvent> subscriber, int capacity,
+                     RotationEvent.Overflow overflow) {
+            this.subscriber = subscriber;
+            this.overflow = overflow;
+            this.buffer = new RotationEvent[capacity];
+        }
+
+        void offer(RotationEvent event) {
+            synchronized (this) {
+                if (count == buffer.length) {
+                    if (overflow == RotationEvent.Overflow.DROP) {
+                        return;
+                    }
+                    buffer[head] = null;
+                    head = (head + 1) % buffer.length;
+                    count--;
+                }
+                buffer[(head + count) % buffer.length] = event;
+                count++;
+            }
+            if (demand.get() > 0) {
+                signal();
+            }
+        }
+
+        private synchronized RotationEvent poll() {
+            if (count == 0) {
+                return null;
+            }
+            RotationEvent event = buffer[head];
+            buffer[head] = null;
+            head = (head + 1) % buffer.length;
+            count--;
+            return event;
+        }
+
+        private synchronized boolean isEmpty() {
+            return count == 0;
+        }
+
+        void complete() {
+            done = true;
+            signal();
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                badRequest = new IllegalArgumentException("Unexpected request: " + n);
+            } else {
+                demand.getAndAccumulate(n, (current, added) -> current + added < 0
+                                                               ? Long.MAX_VALUE : current + added);
+            }
+            signal();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            subscriptions.remove(this);
+        }
+
+        private void signal() {
+            if (pending.getAndIncrement() == 0) {
+                try {
+                    executor.execute(this);
+                } catch (RejectedExecutionException e) {
+                    /* Wykonawca już nie przyjmuje zadań - zdarzeń nie ma kto przekazać. */
+                    cancel();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            int missed = 1;
+            while (!cancelled) {
+                if (badRequest != null) {
+                    cancel();
+                    subscriber.onError(badRequest);
+                    return;
+                }
+                long requested = demand.get();
+                long emitted = 0;
+                RotationEvent event;
+                while (emitted < requested && !cancelled && (event = poll()) != null) {
+                    try {
+                        subscriber.onNext(event);
+                    } catch (RuntimeException e) {
+                        /* Subskrybent nie może rzucać wyjątków - traktujemy to jak rezygnację. */
+                        cancel();
+                        throw e;
+                    }
+                    emitted++;
+                }
+                if (emitted > 0 && requested != Long.MAX_VALUE) {
+                    demand.addAndGet(-emitted);
+                }
+                if (done && !cancelled && isEmpty()) {
+                    cancel();
+                    subscriber.onComplete();
+                    return;
+                }
+                missed = pending.addAndGet(-missed);
+                if (missed == 0) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+package concurrentcube;
+
+import java.time.Duration;
+
+/* Polityka protokołu wejścia grup - decyduje, którą z czekających grup wpuścić, gdy pracująca
+   grupa skończy iterację, i czy nowy proces z pracującej grupy może do niej dołączyć, gdy
+   czekają inne grupy. Metody są wywoływane z posiadanym mutexem protokołu, więc powinny być
+   szybkie i nie mogą wywoływać metod kostki. Grupy czytające to grupa pokazywania, pozostałe
+   grupy to grupy obrotów (po jednej na płaszczyznę). */
+public interface SchedulingPolicy {
+
+    /* Stan kolejek protokołu widziany przez politykę - ważny tylko w czasie wywołania. */
+    interface GroupQueues {
+        /* Liczba grup. */
+        int groups();
+
+        /* Czy grupa groupId tylko czyta stan kostki. */
+        boolean isReaderGroup(int groupId);
+
+        /* Id pracującej grupy lub -1. */
+        int workingGroup();
+
+        /* Liczba czekających grup i id i-tej z nich w kolejności przyjścia ich reprezentantów. */
+        int waitingGroups();
+
+        int waitingGroup(int i);
+
+        /* Liczba czekających procesów grupy groupId. */
+        int waitingProcesses(int groupId);
+
+        /* Moment (System.nanoTime()), od którego czeka najdłużej czekający proces grupy groupId.
+           Grupa musi czekać. */
+        long waitingSince(int groupId);
+    }
+
+    /* Id grupy do wpuszczenia - jednej z czekających. */
+    int nextGroup(GroupQueues queues);
+
+    /* Czy wpuścić do pracującej grupy kolejny proces, gdy czeka inna grupa. letIn to liczba
+       procesów wpuszczonych w tej iteracji, a limit to obecny limit procesów w iteracji. */
+    boolean admitsWhileOthersWait(GroupQueues queues, int letIn, int limit);
+
+    /* Zachowanie domyślne - grupy w kolejności przyjścia reprezentantów i co najwyżej limit
+       procesów w iteracji, gdy ktoś czeka. */
+    static SchedulingPolicy fifo() {
+        return new SchedulingPolicy() {
+            @Override
+            public int nextGroup(GroupQueues queues) {
+                return queues.waitingGroup(0);
+            }
+
+            @Override
+            public boolean admitsWhileOthersWait(GroupQueues queues, int letIn, int limit) {
+                return letIn < limit;
+            }
+        };
+    }
+
+    /* Pierwszeństwo czytających - czekająca grupa pokazywania jest wpuszczana przed grupami
+       obrotów, a pracująca grupa pokazywania przyjmuje nowe procesy bez limitu. Obroty mogą
+       zostać zagłodzone przez ciągłe pokazywanie. */
+    static SchedulingPolicy readerPreferring() {
+        return new SchedulingPolicy() {
+            @Override
+            public int nextGroup(GroupQueues queues) {
+                for (int i = 0; i < queues.waitingGroups(); i++) {
+                    if (queues.isReaderGroup(queues.waitingGroup(i))) {
+                        return queues.waitingGroup(i);
+                    }
+                }
+                return queues.waitingGroup(0);
+            }
+
+            @Override
+            public boolean admitsWhileOthersWait(GroupQueues queues, int letIn, int limit) {
+                return queues.isReaderGroup(queues.workingGroup()) || letIn < limit;
+            }
+        };
+    }
+
+    /* Największa przepustowość - wpuszczana jest grupa z najdłuższą kolejką (przy remisie
+       ta, która czeka dłużej), więc jedna iteracja obsługuje jak najwięcej procesów. Grupa
+       z krótką kolejką może czekać długo. */
+    static SchedulingPolicy longestQueue() {
+        return new SchedulingPolicy() {
+            @Override
+            public int nextGroup(GroupQueues queues) {
+                int best = queues.waitingGroup(0);
+                for (int i = 1; i < queues.waitingGroups(); i++) {
+                    int groupId = queues.waitingGroup(i);
+                    if (queues.waitingProcesses(groupId) > queues.waitingProcesses(best)) {
+                        best = groupId;
+                    }
+                }
+                return best;
+            }
+
+            @Override
+            public boolean admitsWhileOthersWait(GroupQueues queues, int letIn, int limit) {
+                return letIn < limit;
+            }
+        };
+    }
+
+    /* Najwcześniejszy termin (EDF) - proces grupy czytającej powinien zacząć pracę najpóźniej
+       readerDeadline, a proces obrotów writerDeadline od chwili, w której zaczął czekać.
+       Wpuszczana jest grupa z najwcześniejszym terminem najdłużej czekającego procesu, a proces
+       pracującej grupy dołącza do iteracji (w ramach limitu), tylko jeśli termin żadnej
+       czekającej grupy jeszcze nie minął. */
+    static SchedulingPolicy earliestDeadline(Duration readerDeadline, Duration writerDeadline) {
+        long reader = readerDeadline.toNanos();
+        long writer = writerDeadline.toNanos();
+        if (reader < 0 || writer < 0) {
+            throw new IllegalArgumentException("Unexpected deadline: " + readerDeadline + ", "
+                                               + writerDeadline);
+        }
+        return new SchedulingPolicy() {
+            private long deadline(GroupQueues queues, int groupId) {
+                return queues.waitingSince(groupId) + (queues.isReaderGroup(groupId) ? reader : writer);
+            }
+
+            @Override
+            public int nextGroup(GroupQueues queues) {
+                int best = queues.waitingGroup(0);
+                for (int i = 1; i < queues.waitingGroups(); i++) {
+                    int groupId = queues.waitingGroup(i);
+                    if (deadline(queues, groupId) - deadline(queues, best) < 0) {
+                        best = groupId;
+                    }
+                }
+                return best;
+            }
+
+            @Override
+            public boolean admitsWhileOthersWait(GroupQueues queues, int letIn, int limit) {
+                if (letIn >= limit) {
+                    return false;
+                }
+                long now = System.nanoTime();
+                for (int i = 0; i < queues.waitingGroups(); i++) {
+                    if (deadline(queues, queues.waitingGroup(i)) - now <= 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        };
+    }
+}
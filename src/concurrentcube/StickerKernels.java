@@ -0,0 +1,78 @@
+package concurrentcube;
+
+/* Pętle po ciągłych fragmentach tablicy kolorów, które zajmują większość czasu obrotów
+   i sprawdzania stanu dużych kostek. Implementacja jest wybierana raz, przy ładowaniu klasy
+   (najpóźniej przy tworzeniu pierwszej kostki na stercie - zob. Stickers):
+   jeśli JVM ma moduł jdk.incubator.vector (--add-modules jdk.incubator.vector), używamy
+   VectorKernels, a w przeciwnym razie zwykłych pętli. Własność systemowa
+   concurrentcube.scalarKernels=true wymusza zwykłe pętle.
+
+   VectorKernels jest ładowana przez refleksję, żeby brak modułu kończył się wyborem pętli
+   skalarnych, a nie błędem przy pierwszym obrocie. Wybrane pętle są od razu raz wykonywane,
+   żeby ładowanie klas API wektorowego nie wydłużało pierwszego obrotu. */
+abstract class StickerKernels {
+    static final StickerKernels INSTANCE = choose();
+
+    private static StickerKernels choose() {
+        if (!Boolean.getBoolean("concurrentcube.scalarKernels")) {
+            try {
+                StickerKernels kernels = (StickerKernels) Class.forName("concurrentcube.VectorKernels")
+                        .getDeclaredConstructor()
+                        .newInstance();
+                kernels.warmUp();
+                return kernels;
+            } catch (ReflectiveOperationException | LinkageError | UnsupportedOperationException e) {
+                /* Brak modułu lub wektorów - zostają pętle skalarne. */
+            }
+        }
+        return new Scalar();
+    }
+
+    /* Wykonuje każdą pętlę na małej tablicy. */
+    private void warmUp() {
+        byte[] colors = new byte[256];
+        cycleRuns(colors, 0, 64, 128, 192, 64);
+        isUniform(colors, 0, colors.length, (byte) 0);
+        countColors(colors, colors.length, new int[1]);
+    }
+
+    /* Cykliczne przesunięcie czterech rozłącznych ciągów length kolorów o początkach
+       a, b, c, d: a <- b <- c <- d <- a. */
+    abstract void cycleRuns(byte[] colors, int a, int b, int c, int d, int length);
+
+    /* Sprawdza, czy wszystkie kolory z [from, to) są równe color. */
+    abstract boolean isUniform(byte[] colors, int from, int to, byte color);
+
+    /* Dodaje do counters[color] liczbę kwadratów każdego koloru z [0, length). */
+    abstract void countColors(byte[] colors, int length, int[] counters);
+
+    static final class Scalar extends StickerKernels {
+        @Override
+        void cycleRuns(byte[] colors, int a, int b, int c, int d, int length) {
+            for (int i = 0; i < length; i++) {
+                byte temp = colors[a + i];
+                colors[a + i] = colors[b + i];
+                colors[b + i] = colors[c + i];
+                colors[c + i] = colors[d + i];
+                colors[d + i] = temp;
+            }
+        }
+
+        @Override
+        boolean isUniform(byte[] colors, int from, int to, byte color) {
+            for (int i = from; i < to; i++) {
+                if (colors[i] != color) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        void countColors(byte[] colors, int length, int[] counters) {
+            for (int i = 0; i < length; i++) {
+                counters[colors[i]]++;
+            }
+        }
+    }
+}
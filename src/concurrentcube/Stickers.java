@@ -0,0 +1,300 @@
+package concurrentcube;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/* Kolory kwadratów wszystkich ścian kostki przechowywane w jednej ciągłej tablicy bajtów.
+   Każda ściana zajmuje kolejne size * size bajtów, ale dodatkowo pamięta, o ile ćwierćobrotów
+   zgodnie z ruchem wskazówek zegara została obrócona (orientation) - obrót całej ściany
+   zmienia tylko ten licznik, a nie przestawia kwadratów. Kwadrat (side, row, column) widziany
+   z zewnątrz leży więc pod indeksem side * size * size + base + row * rowStride
+   + column * columnStride, gdzie base i kroki zależą od orientacji ściany.
+
+   Orientacji ściany nie zmienia żaden obrót, który mógłby wykonywać się współbieżnie z innym
+   obrotem czytającym tę ścianę, więc zwykła tablica wystarcza. Optymistyczny odczyt może
+   zobaczyć nieaktualną orientację, ale zawsze poprawną (0-3), więc w najgorszym razie
+   odczyta zły stan, który i tak odrzuci.
+
+   Kolory są czytane i zapisywane przez load() i store(), które podklasa może przenieść poza
+   stertę (zob. MappedStickers). */
+class Stickers {
+    private final int size;
+    private final int sideArea;
+    private final int sides;
+    private final int length;
+    private final byte[] colors; // null, jeśli kolory trzyma podklasa.
+    private final StickerKernels kernels; // Pętle dla kolorów na stercie.
+    private final int[] orientation;
+
+    /* Przesunięcie kwadratu (0, 0) i kroki wiersza i kolumny w obrębie ściany
+       dla każdej z 4 orientacji. */
+    private final int[] base = new int[4];
+    private final int[] rowStride = new int[4];
+    private final int[] columnStride = new int[4];
+
+    Stickers(int sides, int size) {
+        this(sides, size, true);
+        reset();
+    }
+
+    /* Dla podklas - onHeap == false oznacza, że podklasa sama trzyma kolory i ustawia stan. */
+    Stickers(int sides, int size, boolean onHeap) {
+        this.size = size;
+        this.sideArea = size * size;
+        this.sides = sides;
+        this.length = sides * sideArea;
+        this.colors = onHeap ? new byte[length] : null;
+        this.kernels = onHeap ? StickerKernels.INSTANCE : null;
+        this.orientation = new int[sides];
+        /* Po obrocie zgodnie z ruchem wskazówek zegara kwadrat (row, column) to kwadrat, który
+           był w (size - 1 - column, row). */
+        base[0] = 0;
+        rowStride[0] = size;
+        columnStride[0] = 1;
+        base[1] = (size - 1) * size;
+        rowStride[1] = 1;
+        columnStride[1] = -size;
+        base[2] = sideArea - 1;
+        rowStride[2] = -size;
+        columnStride[2] = -1;
+        base[3] = size - 1;
+        rowStride[3] = -1;
+        columnStride[3] = size;
+    }
+
+    int size() {
+        return size;
+    }
+
+    int length() {
+        return length;
+    }
+
+    int sides() {
+        return sides;
+    }
+
+    /* Surowy dostęp do koloru pod indeksem tablicy kolorów. */
+    byte load(int index) {
+        return colors[index];
+    }
+
+    void store(int index, byte color) {
+        colors[index] = color;
+    }
+
+    /* Wypełnia kolorem color indeksy [from, to). */
+    void fill(int from, int to, byte color) {
+        Arrays.fill(colors, from, to, color);
+    }
+
+    int orientation(int side) {
+        return orientation[side];
+    }
+
+    void setOrientation(int side, int quarterTurns) {
+        orientation[side] = quarterTurns & 3;
+    }
+
+    /* Zapisuje trwale stan o wersji version (punkt bezpieczny) - dla kolorów na stercie
+       nie ma nic do zrobienia. Wywoływana, gdy nie trwa żadna modyfikacja. */
+    void checkpoint(long version) {
+    }
+
+    /* Wywoływana przed każdą modyfikacją stanu. */
+    void beforeModification() {
+    }
+
+    /* Wersja stanu, od której zaczyna kostka - dla kolorów na stercie zawsze 0. */
+    long version() {
+        return 0;
+    }
+
+    /* Indeks kwadratu (side, row, column) w tablicy kolorów. */
+    int index(int side, int row, int column) {
+        int o = orientation[side];
+        return side * sideArea + base[o] + row * rowStride[o] + column * columnStride[o];
+    }
+
+    /* Pozycja kwadratu (side, row, column) w napisie zwracanym przez show(). */
+    int shownIndex(int side, int row, int column) {
+        return side * sideArea + row * size + column;
+    }
+
+    int get(int index) {
+        return load(index);
+    }
+
+    int get(int side, int row, int column) {
+        return load(index(side, row, column));
+    }
+
+    /* Kolor kwadratu z pozycji shownIndex w napisie zwracanym przez show(). */
+    int getShown(int shownIndex) {
+        int side = shownIndex / sideArea;
+        int offset = shownIndex % sideArea;
+        return get(side, offset / size, offset % size);
+    }
+
+    /* Ustawia kolor kwadratu z pozycji shownIndex w napisie zwracanym przez show(). */
+    void setShown(int shownIndex, byte color) {
+        int side = shownIndex / sideArea;
+        int offset = shownIndex % sideArea;
+        store(index(side, offset / size, offset % size), color);
+    }
+
+    /* Cykliczne przesunięcie czterech kwadratów: a <- b <- c <- d <- a. */
+    void cycle(int a, int b, int c, int d) {
+        byte temp = load(a);
+        store(a, load(b));
+        store(b, load(c));
+        store(c, load(d));
+        store(d, temp);
+    }
+
+    /* Krok w tablicy kolorów odpowiadający przesunięciu o dRow wierszy i dColumn kolumn
+       na ścianie side przy jej obecnej orientacji. */
+    int step(int side, int dRow, int dColumn) {
+        int o = orientation[side];
+        return dRow * rowStride[o] + dColumn * columnStride[o];
+    }
+
+    /* Cykliczne przesunięcie czwórek kwadratów leżących na czterech pasach o początkach
+       a, b, c, d i krokach aStep, bStep, cStep, dStep - dla i z [from, to) przesuwa czwórkę
+       a + i * aStep <- b + i * bStep <- c + i * cStep <- d + i * dStep <- a + i * aStep. */
+    void cycleStrips(int a, int aStep, int b, int bStep, int c, int cStep, int d, int dStep,
+                     int from, int to) {
+        /* Pasy biegnące po kolejnych bajtach w tę samą stronę to ciągłe fragmenty tablicy
+           (np. wiersze ścian o orientacji 0 przy obrotach UP/DOWN). */
+        if (colors != null && aStep == bStep && bStep == cStep && cStep == dStep
+                && (aStep == 1 || aStep == -1)) {
+            int first = aStep == 1 ? from : to - 1;
+            kernels.cycleRuns(colors, a + first * aStep, b + first * aStep,
+                              c + first * aStep, d + first * aStep, to - from);
+            return;
+        }
+        a += from * aStep;
+        b += from * bStep;
+        c += from * cStep;
+        d += from * dStep;
+        for (int i = from; i < to; i++, a += aStep, b += bStep, c += cStep, d += dStep) {
+            byte temp = load(a);
+            store(a, load(b));
+            store(b, load(c));
+            store(c, load(d));
+            store(d, temp);
+        }
+    }
+
+    /* Obraca całą ścianę o podaną liczbę ćwierćobrotów zgodnie z ruchem wskazówek zegara
+       (3 to jeden ćwierćobrót przeciwnie) - w czasie stałym. */
+    void turn(int side, int quarterTurns) {
+        setOrientation(side, orientation[side] + quarterTurns);
+    }
+
+    /* Ustawia kostkę w stan ułożony - ściana side ma kolor side. */
+    void reset() {
+        for (int side = 0; side < sides; side++) {
+            fill(side * sideArea, (side + 1) * sideArea, (byte) side);
+            setOrientation(side, 0);
+        }
+    }
+
+    /* Zapisuje stan kostki jako ciąg cyfr - po jednej na kwadrat. */
+    String show() {
+        byte[] digits = new byte[length];
+        showInto(digits, 0);
+        return new String(digits, StandardCharsets.US_ASCII);
+    }
+
+    /* Zapisuje cyfry kolorów wszystkich kwadratów do dst od pozycji offset. */
+    void showInto(byte[] dst, int offset) {
+        int position = offset;
+        for (int side = 0; side < sides; side++) {
+            int o = orientation[side];
+            int rowStart = side * sideArea + base[o];
+            for (int row = 0; row < size; row++, rowStart += rowStride[o]) {
+                for (int column = 0, i = rowStart; column < size; column++, i += columnStride[o]) {
+                    dst[position++] = (byte) ('0' + load(i));
+                }
+            }
+        }
+    }
+
+    void showInto(char[] dst, int offset) {
+        int position = offset;
+        for (int side = 0; side < sides; side++) {
+            int o = orientation[side];
+            int rowStart = side * sideArea + base[o];
+            for (int row = 0; row < size; row++, rowStart += rowStride[o]) {
+                for (int column = 0, i = rowStart; column < size; column++, i += columnStride[o]) {
+                    dst[position++] = (char) ('0' + load(i));
+                }
+            }
+        }
+    }
+
+    /* Zapisuje cyfry od pozycji index bufora, nie zmieniając jego pozycji. */
+    void showInto(ByteBuffer dst, int index) {
+        if (dst.hasArray()) {
+            showInto(dst.array(), dst.arrayOffset() + index);
+            return;
+        }
+        int position = index;
+        for (int side = 0; side < sides; side++) {
+            int o = orientation[side];
+            int rowStart = side * sideArea + base[o];
+            for (int row = 0; row < size; row++, rowStart += rowStride[o]) {
+                for (int column = 0, i = rowStart; column < size; column++, i += columnStride[o]) {
+                    dst.put(position++, (byte) ('0' + load(i)));
+                }
+            }
+        }
+    }
+
+    /* Sprawdza, czy każda ściana ma jednolity kolor równy swojemu numerowi - orientacja ścian
+       nie ma tu znaczenia. */
+    boolean isSolved() {
+        if (colors != null) {
+            for (int side = 0; side < sides; side++) {
+                if (!kernels.isUniform(colors, side * sideArea, (side + 1) * sideArea, (byte) side)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+        for (int side = 0; side < sides; side++) {
+            for (int i = side * sideArea; i < (side + 1) * sideArea; i++) {
+                if (load(i) != side) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    /* Liczba kwadratów ściany side o kolorze innym niż side. */
+    int countMisplaced(int side) {
+        int count = 0;
+        for (int i = side * sideArea; i < (side + 1) * sideArea; i++) {
+            if (load(i) != side) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /* Zlicza kwadraty każdego koloru. */
+    int[] countColors() {
+        int[] counters = new int[sides];
+        if (colors != null) {
+            kernels.countColors(colors, length, counters);
+            return counters;
+        }
+        for (int i = 0; i < length; i++) {
+            counters[load(i)]++;
+        }
+        return counters;
+    }
+}
@@ -0,0 +1,59 @@
+package concurrentcube;
+
+import jdk.incubator.vector.ByteVector;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorSpecies;
+
+/* Pętle StickerKernels na wektorach o największej szerokości dostępnej na tym procesorze.
+   Końcówki krótsze od wektora są przetwarzane skalarnie. Tworzona wyłącznie przez
+   StickerKernels.choose(). */
+final class VectorKernels extends StickerKernels {
+    private static final VectorSpecies<Byte> SPECIES = ByteVector.SPECIES_PREFERRED;
+
+    private final StickerKernels scalar = new Scalar();
+
+    VectorKernels() {
+        /* Bez sprzętowych wektorów API wektorowe jest wolniejsze od zwykłych pętli. */
+        if (SPECIES.length() < 8) {
+            throw new UnsupportedOperationException("Unexpected vector length: " + SPECIES.length());
+        }
+    }
+
+    @Override
+    void cycleRuns(byte[] colors, int a, int b, int c, int d, int length) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            ByteVector temp = ByteVector.fromArray(SPECIES, colors, a + i);
+            ByteVector.fromArray(SPECIES, colors, b + i).intoArray(colors, a + i);
+            ByteVector.fromArray(SPECIES, colors, c + i).intoArray(colors, b + i);
+            ByteVector.fromArray(SPECIES, colors, d + i).intoArray(colors, c + i);
+            temp.intoArray(colors, d + i);
+        }
+        scalar.cycleRuns(colors, a + bound, b + bound, c + bound, d + bound, length - bound);
+    }
+
+    @Override
+    boolean isUniform(byte[] colors, int from, int to, byte color) {
+        int bound = from + SPECIES.loopBound(to - from);
+        for (int i = from; i < bound; i += SPECIES.length()) {
+            if (ByteVector.fromArray(SPECIES, colors, i).compare(VectorOperators.NE, color).anyTrue()) {
+                return false;
+            }
+        }
+        return scalar.isUniform(colors, bound, to, color);
+    }
+
+    @Override
+    void countColors(byte[] colors, int length, int[] counters) {
+        int bound = SPECIES.loopBound(length);
+        for (int i = 0; i < bound; i += SPECIES.length()) {
+            ByteVector vector = ByteVector.fromArray(SPECIES, colors, i);
+            for (int color = 0; color < counters.length; color++) {
+                counters[color] += vector.eq((byte) color).trueCount();
+            }
+        }
+        for (int i = bound; i < length; i++) {
+            counters[colors[i]]++;
+        }
+    }
+}